@@ -0,0 +1,371 @@
+package client;
+
+import java.io.*;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Asynchronous client for the distributed filesystem.
+
+    <p>
+    Every method returns immediately with a <code>CompletableFuture</code>
+    that completes with the result of the remote call, or exceptionally with
+    the exception it threw. This lets a single application thread keep many
+    reads and writes in flight across storage servers, and compose them with
+    the usual <code>CompletableFuture</code> combinators.
+
+    <p>
+    Reads, writes and sizes go over the data transport of the storage
+    servers, which needs no thread per call: the client keeps one connection
+    to each storage server, sends each request as soon as it is made, and
+    matches the responses as they arrive, all from a single I/O thread. Any
+    number of such calls may be in flight. Actions added to their futures
+    without an <code>Async</code> method run on the I/O thread, so they
+    should not block.
+
+    <p>
+    Reads over the data transport are packed, so that a storage server
+    compresses the data of files in its compressed directories on the wire.
+    Writes are packed and compressed once enabled with
+    <code>setCompression</code>.
+
+    <p>
+    Calls to the naming server, and calls to storage servers that do not run
+    the data transport, use blocking stubs. They run on a small pool of
+    worker threads owned by the client, and wait in a queue when every
+    worker is busy.
+
+    <p>
+    The storage server of each file is remembered after the first lookup, so
+    reads and writes of the same file go straight to the storage server. At
+    most <code>MAX_CACHED_FILES</code> files are remembered, the least
+    recently used being forgotten first. When a call to that server fails, the
+    file is forgotten and the naming server is asked again. If the file now
+    lives on a different storage server, for example because the balancer
+    moved it, the call is retried there once.
+ */
+public class AsyncClient
+{
+    /** Default number of worker threads for blocking calls. */
+    public static final int DEFAULT_THREADS = 16;
+    /** Largest number of files whose storage server is remembered. */
+    public static final int MAX_CACHED_FILES = 16 * 1024;
+
+    private final Service naming_server;
+    private final ExecutorService executor;
+    // Runs the completion handlers of the data transport connections
+    private final AsynchronousChannelGroup group;
+    // Storage server of each file, least recently used first
+    private final Map<Path, Storage> storageCache = Collections.synchronizedMap(
+        new LinkedHashMap<Path, Storage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Storage> eldest)
+            {
+                return size() > MAX_CACHED_FILES;
+            }
+        });
+    // Connection to the data transport of each storage server; completes with
+    // null for servers without one
+    private final ConcurrentHashMap<Storage, CompletableFuture<DataChannel>> channels =
+        new ConcurrentHashMap<Storage, CompletableFuture<DataChannel>>();
+    private volatile boolean compression = false;
+
+    /* Remote call that may throw any exception. */
+    private interface Call<T>
+    {
+        T call() throws Exception;
+    }
+
+    /* Blocking operation on the storage server of a file. */
+    private interface StorageCall<T>
+    {
+        T call(Storage storage) throws Exception;
+    }
+
+    /* Operation over the data transport of the storage server of a file. */
+    private interface ChannelCall<T>
+    {
+        CompletableFuture<T> call(DataChannel channel);
+    }
+
+    /** Creates a client with <code>DEFAULT_THREADS</code> worker threads.
+
+        @param naming_server Stub for the naming server's client interface.
+        @throws NullPointerException If <code>naming_server</code> is
+                                     <code>null</code>.
+     */
+    public AsyncClient(Service naming_server)
+    {
+        this(naming_server, DEFAULT_THREADS);
+    }
+
+    /** Creates a client.
+
+        @param naming_server Stub for the naming server's client interface.
+        @param threads Maximum number of blocking calls in flight at once.
+        @throws NullPointerException If <code>naming_server</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive.
+        @throws UncheckedIOException If the I/O thread cannot be started.
+     */
+    public AsyncClient(Service naming_server, int threads)
+    {
+        if(naming_server == null) {
+            throw new NullPointerException("Naming server cannot be null");
+        }
+        this.naming_server = naming_server;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "AsyncClient worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            this.group = AsynchronousChannelGroup.withFixedThreadPool(1, r -> {
+                Thread t = new Thread(r, "AsyncClient I/O");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        catch(IOException e) {
+            executor.shutdown();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Stops the worker threads and closes the connections to the storage
+        servers. Blocking calls already submitted still complete; calls over
+        the data transport still in flight complete exceptionally.
+     */
+    public void close()
+    {
+        executor.shutdown();
+        for(CompletableFuture<DataChannel> channel: channels.values()) {
+            channel.thenAccept(c -> {
+                if(c != null) {
+                    c.close();
+                }
+            });
+        }
+        group.shutdown();
+    }
+
+    /** Enables or disables compression of the data this client writes. It
+        costs client CPU time to save network, and only pays off for
+        compressible data; data that compresses by less than a tenth is sent
+        as it is.
+     */
+    public void setCompression(boolean enabled)
+    {
+        compression = enabled;
+    }
+
+    /** Asynchronous form of <code>Service.getStorage</code>. */
+    public CompletableFuture<Storage> getStorage(Path file)
+    {
+        return storageOf(file);
+    }
+
+    /** Asynchronous form of <code>Service.list</code>. */
+    public CompletableFuture<String[]> list(Path directory)
+    {
+        return submit(() -> naming_server.list(directory));
+    }
+
+    /** Asynchronous form of <code>Service.createFile</code>. */
+    public CompletableFuture<Boolean> createFile(Path file)
+    {
+        return submit(() -> naming_server.createFile(file));
+    }
+
+    /** Looks up the storage server of a file and calls
+        <code>Storage.size</code> on it.
+     */
+    public CompletableFuture<Long> size(Path file)
+    {
+        return onStorage(file, storage -> storage.size(file), channel -> channel.size(file));
+    }
+
+    /** Looks up the storage server of a file and calls
+        <code>Storage.read</code> on it.
+     */
+    public CompletableFuture<byte[]> read(Path file, long offset, int length)
+    {
+        return onStorage(file, storage -> storage.read(file, offset, length),
+                         length > DataTransport.MAX_DATA ? null
+                             : channel -> channel.readPacked(file, offset, length));
+    }
+
+    /** Looks up the storage server of a file and calls
+        <code>Storage.write</code> on it.
+     */
+    public CompletableFuture<Void> write(Path file, long offset, byte[] data)
+    {
+        StorageCall<Void> blocking = storage -> {
+            storage.write(file, offset, data);
+            return null;
+        };
+        if(data == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("Data cannot be null"));
+        }
+        if(data.length > DataTransport.MAX_DATA) {
+            return onStorage(file, blocking, null);
+        }
+        if(!compression) {
+            return onStorage(file, blocking, channel -> channel.write(file, offset, data));
+        }
+        // Packed once, on the calling thread, however often the call is tried
+        byte[] packed = DataTransport.pack(data, true);
+        return onStorage(file, blocking, channel -> channel.writePacked(file, offset, packed));
+    }
+
+    private <T> CompletableFuture<T> onStorage(Path file, StorageCall<T> blocking,
+                                               ChannelCall<T> direct)
+    {
+        return storageOf(file).thenCompose(storage ->
+            attempt(storage, blocking, direct)
+                .handle((result, error) -> error == null
+                        ? CompletableFuture.completedFuture(result)
+                        : retry(file, storage, unwrap(error), blocking, direct))
+                .thenCompose(f -> f));
+    }
+
+    /* Asks the naming server again after a call to the storage server of a
+       file failed, and retries there once if the file has moved.
+     */
+    private <T> CompletableFuture<T> retry(Path file, Storage storage, Throwable error,
+                                           StorageCall<T> blocking, ChannelCall<T> direct)
+    {
+        // The file may have moved or the server may be gone
+        storageCache.remove(file, storage);
+        return submit(() -> naming_server.getStorage(file)).handle((current, lookup) -> {
+            if(lookup != null) {
+                error.addSuppressed(unwrap(lookup));
+                return CompletableFuture.<T>failedFuture(error);
+            }
+            if(current.equals(storage)) {
+                return CompletableFuture.<T>failedFuture(error);
+            }
+            storageCache.put(file, current);
+            return attempt(current, blocking, direct).whenComplete((result, retry) -> {
+                if(retry != null) {
+                    storageCache.remove(file, current);
+                }
+            });
+        }).thenCompose(f -> f);
+    }
+
+    /* Calls a storage server over its data transport if it has one, and on a
+       worker thread otherwise.
+     */
+    private <T> CompletableFuture<T> attempt(Storage storage, StorageCall<T> blocking,
+                                             ChannelCall<T> direct)
+    {
+        if(direct == null) {
+            return submit(() -> blocking.call(storage));
+        }
+        return channelOf(storage).thenCompose(channel -> channel == null
+                                              ? submit(() -> blocking.call(storage))
+                                              : direct.call(channel));
+    }
+
+    /* Returns the connection to a storage server, opening a new one if there
+       is none or the last one failed.
+     */
+    private CompletableFuture<DataChannel> channelOf(Storage storage)
+    {
+        while(true) {
+            CompletableFuture<DataChannel> channel = channels.get(storage);
+            if(channel != null && !failed(channel)) {
+                return channel;
+            }
+            CompletableFuture<DataChannel> opened = new CompletableFuture<DataChannel>();
+            if(channel == null ? channels.putIfAbsent(storage, opened) == null
+                               : channels.replace(storage, channel, opened)) {
+                connect(storage, opened);
+                return opened;
+            }
+            // Another call opened one first
+        }
+    }
+
+    private static boolean failed(CompletableFuture<DataChannel> channel)
+    {
+        if(!channel.isDone()) {
+            return false;
+        }
+        if(channel.isCompletedExceptionally()) {
+            return true;
+        }
+        DataChannel open = channel.join();
+        return open != null && !open.isOpen();
+    }
+
+    private void connect(Storage storage, CompletableFuture<DataChannel> opened)
+    {
+        if(!(storage instanceof StorageTransfer)) {
+            opened.complete(null);
+            return;
+        }
+        submit(() -> ((StorageTransfer)storage).dataAddress())
+            .thenCompose(address -> address == null
+                         ? CompletableFuture.<DataChannel>completedFuture(null)
+                         : DataChannel.open(group, address))
+            .whenComplete((channel, error) -> {
+                if(error != null) {
+                    opened.completeExceptionally(unwrap(error));
+                }
+                else {
+                    opened.complete(channel);
+                }
+            });
+    }
+
+    private CompletableFuture<Storage> storageOf(Path file)
+    {
+        if(file == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("Path cannot be null"));
+        }
+        Storage storage = storageCache.get(file);
+        if(storage != null) {
+            return CompletableFuture.completedFuture(storage);
+        }
+        return submit(() -> {
+            Storage found = naming_server.getStorage(file);
+            storageCache.put(file, found);
+            return found;
+        });
+    }
+
+    /* Returns the exception a call threw, without the wrapper added when it
+       passed through a dependent future.
+     */
+    private static Throwable unwrap(Throwable error)
+    {
+        return error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call)
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                }
+                catch(Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            future.completeExceptionally(new IllegalStateException("Client is closed"));
+        }
+        return future;
+    }
+}
@@ -0,0 +1,166 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+import storage.*;
+
+/** Connection to the data transport of one storage server.
+
+    <p>
+    Requests are written as soon as they are made, without waiting for
+    earlier ones to complete, and responses are matched to their requests by
+    identifier. Any number of calls may be in flight on one connection, and
+    no thread waits for any of them. Once the connection fails, every call in
+    flight completes exceptionally, and later calls fail at once; the client
+    then opens a new connection.
+ */
+class DataChannel
+{
+    private final FramedChannel channel;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>> pending =
+        new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+    private volatile Throwable failure;
+
+    private DataChannel(AsynchronousSocketChannel socket)
+    {
+        channel = new FramedChannel(socket, new FramedChannel.Receiver() {
+            @Override
+            public void received(ByteBuffer response)
+            {
+                CompletableFuture<ByteBuffer> call = pending.remove(response.getLong());
+                if(call == null) {
+                    return;
+                }
+                byte status = response.get();
+                if(status == DataTransport.OK) {
+                    call.complete(response);
+                }
+                else {
+                    call.completeExceptionally(DataTransport.failure(status, response));
+                }
+            }
+
+            @Override
+            public void closed(Throwable cause)
+            {
+                failure = cause != null ? cause : new EOFException("Connection closed");
+                for(Long id: pending.keySet()) {
+                    CompletableFuture<ByteBuffer> call = pending.remove(id);
+                    if(call != null) {
+                        call.completeExceptionally(failure);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Opens a connection.
+
+        @param group Group whose threads run the completion handlers.
+        @param address Address of the data transport.
+        @return A future that completes with the open connection.
+     */
+    static CompletableFuture<DataChannel> open(AsynchronousChannelGroup group,
+                                               InetSocketAddress address)
+    {
+        CompletableFuture<DataChannel> opened = new CompletableFuture<DataChannel>();
+        AsynchronousSocketChannel socket;
+        try {
+            socket = AsynchronousSocketChannel.open(group);
+        }
+        catch(IOException e) {
+            opened.completeExceptionally(e);
+            return opened;
+        }
+        socket.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment)
+            {
+                DataChannel connection = new DataChannel(socket);
+                connection.channel.start();
+                opened.complete(connection);
+            }
+
+            @Override
+            public void failed(Throwable cause, Void attachment)
+            {
+                try {
+                    socket.close();
+                }
+                catch(IOException e) {
+                    cause.addSuppressed(e);
+                }
+                opened.completeExceptionally(cause);
+            }
+        });
+        return opened;
+    }
+
+    /** Returns <code>false</code> once the connection has failed. */
+    boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /** Closes the connection. Calls in flight complete exceptionally. */
+    void close()
+    {
+        channel.close(null);
+    }
+
+    CompletableFuture<Long> size(Path file)
+    {
+        return call(DataTransport.SIZE, file, 0, 0, null).thenApply(ByteBuffer::getLong);
+    }
+
+    /* Reads packed data and unpacks it, on the I/O thread. */
+    CompletableFuture<byte[]> readPacked(Path file, long offset, int length)
+    {
+        return call(DataTransport.READ_PACKED, file, offset, length, null)
+            .thenCompose(response -> {
+                byte[] packed = new byte[response.remaining()];
+                response.get(packed);
+                try {
+                    return CompletableFuture.completedFuture(DataTransport.unpack(packed));
+                }
+                catch(IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            });
+    }
+
+    CompletableFuture<Void> writePacked(Path file, long offset, byte[] packed)
+    {
+        return call(DataTransport.WRITE_PACKED, file, offset, packed.length, packed)
+            .thenApply(response -> null);
+    }
+
+    CompletableFuture<Void> write(Path file, long offset, byte[] data)
+    {
+        return call(DataTransport.WRITE, file, offset, data.length, data)
+            .thenApply(response -> null);
+    }
+
+    private CompletableFuture<ByteBuffer> call(byte operation, Path file, long offset,
+                                               int length, byte[] data)
+    {
+        CompletableFuture<ByteBuffer> call = new CompletableFuture<ByteBuffer>();
+        long id = nextId.incrementAndGet();
+        pending.put(id, call);
+        // Checked after registering, so a close either sees this call or is
+        // seen here
+        if(failure != null && pending.remove(id) != null) {
+            call.completeExceptionally(failure);
+            return call;
+        }
+        channel.send(DataTransport.request(id, operation, file, offset, length, data));
+        return call;
+    }
+}
@@ -0,0 +1,185 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Stream of length-prefixed frames over an asynchronous socket channel.
+ * <p>
+ * <p>
+ * No thread waits on the channel. Frames are read one after the other by
+ * completion handlers, which hand each complete frame to the receiver on a
+ * thread of the channel's group. Frames sent from any thread are queued and
+ * written in order, one write outstanding at a time.
+ * <p>
+ * <p>
+ * Each frame is a four-byte length followed by that many bytes. The
+ * receiver is told once when the channel closes, whether on request, at the
+ * end of the stream, or on an error.
+ */
+public class FramedChannel {
+
+    /** Largest frame accepted, enough for a 64 MB read or write. */
+    public static final int MAX_FRAME = 64 * 1024 * 1024 + 64 * 1024;
+
+    /** Handler of the frames arriving on a channel. */
+    public interface Receiver {
+        /** Called with each frame, positioned at the start of its body. */
+        void received(ByteBuffer frame);
+
+        /** Called once when the channel closes, with the cause if any. */
+        void closed(Throwable cause);
+    }
+
+    private final AsynchronousSocketChannel channel;
+    private final Receiver receiver;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    // Frames waiting to be written; the first is being written
+    private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+    private boolean closed = false;
+
+    /**
+     * Creates a framed channel. Nothing is read until <code>start</code> is
+     * called.
+     */
+    public FramedChannel(AsynchronousSocketChannel channel, Receiver receiver) {
+        this.channel = channel;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Allocates a frame with room for a body of the given length. The body
+     * is filled by the caller, and the frame passed to <code>send</code>.
+     */
+    public static ByteBuffer allocate(int length) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length);
+        return frame;
+    }
+
+    /** Starts reading frames. */
+    public void start() {
+        readHeader();
+    }
+
+    /**
+     * Queues a frame made by <code>allocate</code> for writing. Frames sent
+     * after the channel closed are dropped.
+     */
+    public void send(ByteBuffer frame) {
+        frame.flip();
+        synchronized(outgoing) {
+            if(closed) {
+                return;
+            }
+            outgoing.add(frame);
+            if(outgoing.size() > 1) {
+                // The write under way goes on to this one
+                return;
+            }
+        }
+        write(frame);
+    }
+
+    /** Returns <code>false</code> once the channel has closed. */
+    public boolean isOpen() {
+        synchronized(outgoing) {
+            return !closed;
+        }
+    }
+
+    /**
+     * Closes the channel and tells the receiver, unless it is already closed.
+     *
+     * @param cause The reason, or <code>null</code> if closed on request.
+     */
+    public void close(Throwable cause) {
+        synchronized(outgoing) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            outgoing.clear();
+        }
+        try {
+            channel.close();
+        }
+        catch(IOException e) {
+            // Closed either way
+        }
+        receiver.closed(cause);
+    }
+
+    private void write(ByteBuffer frame) {
+        channel.write(frame, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if(frame.hasRemaining()) {
+                    channel.write(frame, null, this);
+                    return;
+                }
+                ByteBuffer next;
+                synchronized(outgoing) {
+                    outgoing.poll();
+                    next = outgoing.peek();
+                }
+                if(next != null) {
+                    write(next);
+                }
+            }
+
+            @Override
+            public void failed(Throwable cause, Void attachment) {
+                close(cause);
+            }
+        });
+    }
+
+    private void readHeader() {
+        header.clear();
+        readFully(header, () -> {
+            header.flip();
+            int length = header.getInt();
+            if(length < 0 || length > MAX_FRAME) {
+                close(new IOException("Frame of " + length + " bytes"));
+                return;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, () -> {
+                body.flip();
+                receiver.received(body);
+                readHeader();
+            });
+        });
+    }
+
+    /* Fills the buffer, then runs the next step. */
+    private void readFully(ByteBuffer buffer, Runnable next) {
+        if(!buffer.hasRemaining()) {
+            next.run();
+            return;
+        }
+        channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if(count < 0) {
+                    close(buffer.position() == 0 && buffer == header
+                          ? null : new EOFException("Channel closed within a frame"));
+                    return;
+                }
+                if(buffer.hasRemaining()) {
+                    channel.read(buffer, null, this);
+                    return;
+                }
+                next.run();
+            }
+
+            @Override
+            public void failed(Throwable cause, Void attachment) {
+                close(cause);
+            }
+        });
+    }
+}
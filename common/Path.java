@@ -22,8 +22,11 @@ import java.util.*;
  */
 public class Path implements Iterable<String>, Comparable<Path>, Serializable {
 
-    public ArrayList<String> components = new ArrayList<String>();
-    String fullFileName;
+    private static final long serialVersionUID = 1L;
+
+    // Both fields are rebuilt in readObject; only the components go on the wire
+    public transient ArrayList<String> components = new ArrayList<String>();
+    transient String fullFileName;
 
     /**
      * Creates a new path which represents the root directory.
@@ -102,6 +105,43 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
 
     }
 
+    /**
+     * Writes the path in a compact form: the component count followed by each
+     * component as length-prefixed UTF-8.
+     * <p>
+     * <p>
+     * Default serialization would ship the whole <code>ArrayList</code> and
+     * the duplicated full path string on every remote call.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.writeInt(this.components.size());
+        for(String c: this.components) {
+            out.writeUTF(c);
+        }
+    }
+
+    /**
+     * Reads a path written by <code>writeObject</code> and rebuilds the full
+     * path string from its components.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        int size = in.readInt();
+        if(size < 0) {
+            throw new InvalidObjectException("Negative component count");
+        }
+        this.components = new ArrayList<String>(size);
+        StringBuilder builder = new StringBuilder();
+        for(int i=0; i<size; i++) {
+            String c = in.readUTF();
+            if(c.isEmpty() || c.contains("/") || c.contains(":")) {
+                throw new InvalidObjectException("Component is not proper");
+            }
+            this.components.add(c);
+            builder.append('/').append(c);
+        }
+        this.fullFileName = size == 0 ? "/" : builder.toString();
+    }
+
     /**
      * Returns an iterator over the components of the path.
      * <p>
@@ -111,7 +151,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      *
      * @return The iterator.
      */
-    public class PathIterator<String> implements Iterator {
+    public class PathIterator implements Iterator<String> {
 
         public Path currentPath;
         public  int currentIndex = -1;
@@ -130,7 +170,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
         @Override
         public String next() {
             if(hasNext())
-                return (String)currentPath.components.get(currentIndex++);
+                return currentPath.components.get(currentIndex++);
             throw new NoSuchElementException("No more elements");
         }
         @Override
@@ -142,7 +182,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
     @Override
     public Iterator<String> iterator() {
 
-        PathIterator<String> myIterator = new PathIterator<String>(this);
+        PathIterator myIterator = new PathIterator(this);
         return myIterator;
     }
 
@@ -253,7 +293,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     public boolean isSubpath(Path other) {
 
-        return this.fullFileName.contains(other.fullFileName);
+        int size = other.components.size();
+        if(size > this.components.size()) {
+            return false;
+        }
+        for(int i=0; i<size; i++) {
+            if(!this.components.get(i).equals(other.components.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -314,7 +363,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      */
     @Override
     public int compareTo(Path other) {
-        throw new UnsupportedOperationException("not implemented");
+
+        // Component-wise, so that a directory precedes everything below it
+        int common = Math.min(this.components.size(), other.components.size());
+        for(int i=0; i<common; i++) {
+            int result = this.components.get(i).compareTo(other.components.get(i));
+            if(result != 0) {
+                return result;
+            }
+        }
+        return this.components.size() - other.components.size();
     }
 
     /**
@@ -325,10 +383,14 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
      *
      * @param other The other path.
      * @return <code>true</code> if and only if the two paths are equal.
+     *         <code>false</code> if <code>other</code> is <code>null</code>
+     *         or not a path.
      */
     @Override
     public boolean equals(Object other) {
-
+        if(!(other instanceof Path)) {
+            return false;
+        }
         Path temp = (Path) other;
         return this.fullFileName.equals(temp.fullFileName);
     }
@@ -0,0 +1,508 @@
+package harness;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Measures a workload on local clusters of growing size.
+
+    <p>
+    For each cluster size 1, 2, 4, ... up to the maximum, a fresh
+    <code>LocalCluster</code> is started, the workload is run by a fixed
+    number of client threads, and one line is printed with the throughput
+    and latency percentiles. The lines together form the scaling curve.
+
+    <p>
+    Every client thread uses its own random number generator, seeded with its
+    index, so a run issues the same operations every time.
+
+    <p>
+    Usage:
+    <pre>
+    java harness.Benchmark workload max_servers [threads [operations [remote]]]
+    </pre>
+    where <code>workload</code> is one of <code>metadata</code>,
+    <code>sequential-read</code>, <code>random-write</code>,
+    <code>registration</code>, <code>text-read</code>,
+    <code>text-read-compressed</code>, <code>text-write</code>,
+    <code>text-write-compressed</code>, <code>encoding-serialized</code>,
+    <code>encoding-path</code> or <code>encoding-transport</code>,
+    <code>operations</code> is the number per thread, and
+    <code>remote</code> is <code>true</code> to go through stubs on localhost
+    instead of calling the servers directly.
+
+    <p>
+    Besides throughput and latency, each line gives the bytes that crossed
+    the wire and the CPU time of the client threads. Run locally, the client
+    threads also do the servers' work, so the CPU time covers both ends; the
+    text workloads, run with and without compression, then show the CPU
+    cost of compression against the bytes it saves.
+
+    <p>
+    The encoding workloads start no cluster and ignore
+    <code>max_servers</code>. Each operation encodes a write request, a path
+    and a block of data, and decodes it again: as a path with default
+    serialization and the block through an object stream; as
+    <code>Path</code> with its compact form and the block through an object
+    stream, as a remote call sends them; and as a frame of the data
+    transport. The bytes are those of the path and the block, the wire bytes
+    those of the encoded request, and the latency and CPU time those of
+    encoding and decoding.
+ */
+public class Benchmark
+{
+    /** Size of each read in the sequential read workload, in bytes. */
+    public static final int READ_SIZE = 1024 * 1024;
+    /** Size of the file each thread reads in the sequential read workload. */
+    public static final int READ_FILE_SIZE = 16 * READ_SIZE;
+    /** Size of each write in the random write workload, in bytes. */
+    public static final int WRITE_SIZE = 4 * 1024;
+    /** Size of the file each thread writes in the random write workload. */
+    public static final int WRITE_FILE_SIZE = 1024 * 1024;
+    /** Files each storage server registers in the registration workload. */
+    public static final int INVENTORY = 100000;
+    // Words the text of the text workloads is made of
+    private static final String[] WORDS = {
+        "the", "storage", "server", "naming", "file", "directory", "block",
+        "read", "write", "of", "and", "to", "a", "replica", "path", "data"
+    };
+
+    /** Workloads the benchmark can run. */
+    public enum Workload
+    {
+        /** Creates directories and files, and lists their parents. */
+        METADATA,
+        /** Reads a large file from start to end, over and over. */
+        SEQUENTIAL_READ,
+        /** Writes small blocks at random offsets of a file. */
+        RANDOM_WRITE,
+        /** Registers storage servers that already hold many files. */
+        REGISTRATION,
+        /** Reads a file of text in packed form, without compression. */
+        TEXT_READ(true, false),
+        /** Reads a file of text in packed form, from a directory where
+            compression is enabled.
+         */
+        TEXT_READ_COMPRESSED(true, true),
+        /** Writes a file of text in packed form, without compression. */
+        TEXT_WRITE(true, false),
+        /** Writes a file of text in packed form, compressed. */
+        TEXT_WRITE_COMPRESSED(true, true),
+        /** Encodes write requests with default serialization of the path
+            and the data.
+         */
+        ENCODING_SERIALIZED,
+        /** Encodes write requests with the compact serialized form of
+            <code>Path</code>.
+         */
+        ENCODING_PATH,
+        /** Encodes write requests as frames of the data transport. */
+        ENCODING_TRANSPORT;
+
+        // Whether the data is packed, and whether it is compressed
+        final boolean packed;
+        final boolean compressed;
+
+        Workload()
+        {
+            this(false, false);
+        }
+
+        Workload(boolean packed, boolean compressed)
+        {
+            this.packed = packed;
+            this.compressed = compressed;
+        }
+    }
+
+    // Workloads that only encode and decode requests, without a cluster
+    private static final EnumSet<Workload> ENCODINGS =
+        EnumSet.of(Workload.ENCODING_SERIALIZED, Workload.ENCODING_PATH,
+                   Workload.ENCODING_TRANSPORT);
+
+    /** Result of running a workload on one cluster. */
+    public static class Result
+    {
+        public final int servers;
+        public final long operations;
+        public final long bytes;
+        /** Bytes that crossed the wire, which is less than
+            <code>bytes</code> when data is compressed.
+         */
+        public final long wireBytes;
+        public final long nanos;
+        /** CPU time of the client threads. */
+        public final long cpuNanos;
+        // Latency of every operation, sorted
+        private final long[] latencies;
+
+        Result(int servers, long operations, long bytes, long nanos, long[] latencies) {
+            this(servers, operations, bytes, bytes, nanos, 0, latencies);
+        }
+
+        Result(int servers, long operations, long bytes, long wireBytes, long nanos,
+               long cpuNanos, long[] latencies) {
+            this.servers = servers;
+            this.operations = operations;
+            this.bytes = bytes;
+            this.wireBytes = wireBytes;
+            this.nanos = nanos;
+            this.cpuNanos = cpuNanos;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        /** Returns the latency below which the given fraction of operations
+            completed, in nanoseconds.
+         */
+        public long percentile(double fraction)
+        {
+            if(latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        @Override
+        public String toString()
+        {
+            double seconds = nanos / 1e9;
+            double megabytes = bytes / (1024.0 * 1024);
+            return String.format("servers=%d ops=%d seconds=%.3f ops/s=%.0f MB/s=%.1f"
+                                 + " wireMB=%.1f of %.1f cpu=%.3fs cpu/MB=%.2fms"
+                                 + " p50=%dus p90=%dus p99=%dus max=%dus",
+                                 servers, operations, seconds, operations / seconds,
+                                 megabytes / seconds, wireBytes / (1024.0 * 1024), megabytes,
+                                 cpuNanos / 1e9, megabytes == 0 ? 0 : cpuNanos / 1e6 / megabytes,
+                                 percentile(0.5) / 1000, percentile(0.9) / 1000,
+                                 percentile(0.99) / 1000, percentile(1.0) / 1000);
+        }
+    }
+
+    /* Operation run repeatedly by one client thread. */
+    private interface Operation
+    {
+        /** Runs the operation number i and returns the bytes it moved. */
+        long run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2) {
+            System.err.println("usage: java harness.Benchmark workload max_servers"
+                               + " [threads [operations [remote]]]");
+            System.exit(2);
+        }
+        Workload workload = Workload.valueOf(args[0].toUpperCase().replace('-', '_'));
+        int maxServers = Integer.parseInt(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int operations = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        boolean remote = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        System.out.println(workload + " threads=" + threads + " remote=" + remote);
+        if(ENCODINGS.contains(workload)) {
+            System.out.println(run(workload, 0, threads, operations, remote));
+            return;
+        }
+        for(int servers = 1; servers <= maxServers; servers *= 2) {
+            System.out.println(run(workload, servers, threads, operations, remote));
+        }
+    }
+
+    /** Runs a workload on a fresh cluster.
+
+        @param workload The workload.
+        @param servers Number of storage servers.
+        @param threads Number of client threads.
+        @param operations Number of operations per thread. Ignored for
+                          <code>REGISTRATION</code>, which registers
+                          <code>INVENTORY</code> files per server and counts
+                          each file as one operation.
+        @param remote Whether to go through stubs on localhost.
+        @return The measurements.
+        @throws Exception If the cluster cannot be started or an operation
+                          fails.
+     */
+    public static Result run(Workload workload, int servers, int threads, int operations,
+                             boolean remote)
+        throws Exception
+    {
+        if(workload == Workload.REGISTRATION) {
+            // Servers register one after another; creating their files is
+            // not counted. Each latency is the registration of one server.
+            LocalCluster cluster = new LocalCluster(servers, INVENTORY, remote);
+            try {
+                long[] latencies = cluster.registrationNanos();
+                long nanos = 0;
+                for(long latency: latencies) {
+                    nanos += latency;
+                }
+                return new Result(servers, (long) servers * INVENTORY, 0, nanos, latencies);
+            }
+            finally {
+                cluster.stop();
+            }
+        }
+
+        LocalCluster cluster =
+            ENCODINGS.contains(workload) ? null : new LocalCluster(servers, 0, remote);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Service service = cluster == null ? null : cluster.service();
+            long[] wire = new long[threads];
+            ArrayList<Operation> clients = new ArrayList<Operation>();
+            for(int t=0; t<threads; t++) {
+                clients.add(cluster == null ? encoding(workload, t, wire)
+                                            : prepare(workload, cluster, service, t, wire));
+            }
+            Arrays.fill(wire, 0);
+
+            ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+            long[][] latencies = new long[threads][operations];
+            long[] bytes = new long[threads];
+            long[] cpuNanos = new long[threads];
+            ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+            long start = System.nanoTime();
+            for(int t=0; t<threads; t++) {
+                final int index = t;
+                done.add(pool.submit(() -> {
+                    Operation operation = clients.get(index);
+                    long cpuBefore = cpu.getCurrentThreadCpuTime();
+                    for(int i=0; i<operations; i++) {
+                        long before = System.nanoTime();
+                        bytes[index] += operation.run(i);
+                        latencies[index][i] = System.nanoTime() - before;
+                    }
+                    cpuNanos[index] = cpu.getCurrentThreadCpuTime() - cpuBefore;
+                    return null;
+                }));
+            }
+            for(Future<?> future: done) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+
+            long[] all = new long[threads * operations];
+            long total = 0;
+            long totalWire = 0;
+            long totalCpu = 0;
+            for(int t=0; t<threads; t++) {
+                System.arraycopy(latencies[t], 0, all, t * operations, operations);
+                total += bytes[t];
+                totalWire += wire[t];
+                totalCpu += cpuNanos[t];
+            }
+            // Workloads that do not pack or encode their data send it as it is
+            if(!workload.packed && !ENCODINGS.contains(workload)) {
+                totalWire = total;
+            }
+            return new Result(servers, all.length, total, totalWire, nanos, totalCpu, all);
+        }
+        finally {
+            pool.shutdownNow();
+            if(cluster != null) {
+                cluster.stop();
+            }
+        }
+    }
+
+    /* Sets up the files a client thread needs, and returns its operation.
+       Operations that pack their data add the bytes sent to wire[thread].
+     */
+    private static Operation prepare(Workload workload, LocalCluster cluster, Service service,
+                                     int thread, long[] wire)
+        throws Exception
+    {
+        Random random = new Random(thread);
+        Path home = new Path("/client" + thread);
+        service.createDirectory(home);
+
+        switch(workload) {
+        case METADATA:
+            return i -> {
+                Path directory = new Path(home, "d" + (i / 100));
+                if(i % 100 == 0) {
+                    service.createDirectory(directory);
+                }
+                service.createFile(new Path(directory, "f" + i));
+                service.list(directory);
+                return 0;
+            };
+        case SEQUENTIAL_READ: {
+            Path file = new Path(home, "data");
+            service.createFile(file);
+            Storage storage = service.getStorage(file);
+            byte[] chunk = new byte[READ_SIZE];
+            for(long offset = 0; offset < READ_FILE_SIZE; offset += READ_SIZE) {
+                random.nextBytes(chunk);
+                storage.write(file, offset, chunk);
+            }
+            return i -> {
+                long offset = (long) i * READ_SIZE % READ_FILE_SIZE;
+                return storage.read(file, offset, READ_SIZE).length;
+            };
+        }
+        case RANDOM_WRITE: {
+            Path file = new Path(home, "data");
+            service.createFile(file);
+            Storage storage = service.getStorage(file);
+            storage.write(file, 0, new byte[WRITE_FILE_SIZE]);
+            byte[] block = new byte[WRITE_SIZE];
+            random.nextBytes(block);
+            return i -> {
+                long offset = (long) random.nextInt(WRITE_FILE_SIZE / WRITE_SIZE) * WRITE_SIZE;
+                storage.write(file, offset, block);
+                return WRITE_SIZE;
+            };
+        }
+        case TEXT_READ:
+        case TEXT_READ_COMPRESSED: {
+            for(StorageServer server: cluster.storageServers()) {
+                server.setCompression(home, workload.compressed);
+            }
+            Path file = new Path(home, "text");
+            service.createFile(file);
+            StorageTransfer storage = transfer(service.getStorage(file));
+            for(long offset = 0; offset < READ_FILE_SIZE; offset += READ_SIZE) {
+                storage.write(file, offset, text(random, READ_SIZE));
+            }
+            return i -> {
+                long offset = (long) i * READ_SIZE % READ_FILE_SIZE;
+                byte[] packed = storage.readPacked(file, offset, READ_SIZE);
+                wire[thread] += packed.length;
+                return DataTransport.unpack(packed).length;
+            };
+        }
+        case TEXT_WRITE:
+        case TEXT_WRITE_COMPRESSED: {
+            Path file = new Path(home, "text");
+            service.createFile(file);
+            StorageTransfer storage = transfer(service.getStorage(file));
+            byte[] chunk = text(random, READ_SIZE);
+            return i -> {
+                long offset = (long) i * READ_SIZE % READ_FILE_SIZE;
+                byte[] packed = DataTransport.pack(chunk, workload.compressed);
+                storage.writePacked(file, offset, packed);
+                wire[thread] += packed.length;
+                return READ_SIZE;
+            };
+        }
+        default:
+            throw new IllegalArgumentException("Not a client workload: " + workload);
+        }
+    }
+
+    /* Returns the operation of a client thread in an encoding workload.
+       Each operation adds the bytes of the encoded request to wire[thread].
+     */
+    private static Operation encoding(Workload workload, int thread, long[] wire)
+    {
+        Random random = new Random(thread);
+        byte[] block = new byte[WRITE_SIZE];
+        random.nextBytes(block);
+        Path home = new Path("/client" + thread);
+
+        return i -> {
+            Path file = new Path(new Path(home, "d" + (i / 100)), "f" + i);
+            long offset = (long) random.nextInt(WRITE_FILE_SIZE / WRITE_SIZE) * WRITE_SIZE;
+            byte[] encoded;
+            Path decodedFile;
+            byte[] decodedBlock;
+            switch(workload) {
+            case ENCODING_SERIALIZED:
+            case ENCODING_PATH: {
+                // A fresh stream for every request, as for every remote call
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(workload == Workload.ENCODING_PATH
+                                ? file : new SerializedPath(file));
+                out.writeLong(offset);
+                out.writeObject(block);
+                out.close();
+                encoded = bytes.toByteArray();
+                ObjectInputStream in =
+                    new ObjectInputStream(new ByteArrayInputStream(encoded));
+                Object path = in.readObject();
+                decodedFile = workload == Workload.ENCODING_PATH
+                              ? (Path) path : ((SerializedPath) path).toPath();
+                in.readLong();
+                decodedBlock = (byte[]) in.readObject();
+                break;
+            }
+            case ENCODING_TRANSPORT: {
+                ByteBuffer frame = DataTransport.request(i, DataTransport.WRITE, file,
+                                                         offset, block.length, block);
+                encoded = frame.array();
+                ByteBuffer request = ByteBuffer.wrap(encoded);
+                request.getInt();
+                request.getLong();
+                request.get();
+                decodedFile = DataTransport.path(request);
+                request.getLong();
+                decodedBlock = new byte[request.getInt()];
+                request.get(decodedBlock);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not an encoding workload: " + workload);
+            }
+            if(!decodedFile.equals(file) || decodedBlock.length != block.length) {
+                throw new IllegalStateException("Request did not survive encoding");
+            }
+            wire[thread] += encoded.length;
+            return file.toString().length() + block.length;
+        };
+    }
+
+    /* Path as it was sent before Path had a compact serialized form: both
+       the list of components and the full path, by default serialization.
+     */
+    private static class SerializedPath implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> components = new ArrayList<String>();
+        private final String fullFileName;
+
+        SerializedPath(Path path)
+        {
+            for(String component: path) {
+                components.add(component);
+            }
+            fullFileName = path.toString();
+        }
+
+        Path toPath()
+        {
+            return new Path(fullFileName);
+        }
+    }
+
+    /* Returns a storage stub as the interface with packed reads and writes. */
+    private static StorageTransfer transfer(Storage storage)
+    {
+        if(!(storage instanceof StorageTransfer)) {
+            throw new IllegalStateException("Storage server has no packed reads and writes");
+        }
+        return (StorageTransfer) storage;
+    }
+
+    /* Returns the given number of bytes of text made of a few words. */
+    private static byte[] text(Random random, int length)
+    {
+        StringBuilder text = new StringBuilder(length + 16);
+        while(text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)])
+                .append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+}
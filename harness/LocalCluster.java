@@ -0,0 +1,147 @@
+package harness;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** A naming server and a number of storage servers running in this process.
+
+    <p>
+    Each storage server keeps its files in a fresh temporary directory, which
+    is removed when the cluster is stopped. The servers can either be started
+    on localhost and reached through stubs, which measures the whole stack
+    including the network, or be called directly as local objects, which
+    measures the server code alone.
+
+    <p>
+    Only one remote cluster can run at a time, because the naming server
+    listens on the well-known ports in <code>NamingStubs</code>.
+ */
+public class LocalCluster
+{
+    /** Address the servers of a remote cluster listen on. */
+    public static final String HOSTNAME = "127.0.0.1";
+
+    private final NamingServer naming;
+    private final StorageServer[] storage;
+    private final File[] roots;
+    private final Service service;
+    private final long[] registrationNanos;
+
+    /** Starts a cluster.
+
+        @param storageServers Number of storage servers.
+        @param inventory Number of files placed in the directory of each
+                         storage server before it starts, so that it
+                         registers them with the naming server. The files of
+                         different servers do not overlap.
+        @param remote If <code>true</code>, the servers are started on
+                      localhost and reached through stubs. Otherwise they are
+                      called directly and never listen on any port.
+        @throws IOException If a temporary directory cannot be set up.
+        @throws Exception If a server cannot be started.
+     */
+    public LocalCluster(int storageServers, int inventory, boolean remote) throws Exception
+    {
+        if(storageServers <= 0) {
+            throw new IllegalArgumentException("At least one storage server is needed");
+        }
+        naming = new NamingServer();
+        storage = new StorageServer[storageServers];
+        roots = new File[storageServers];
+        registrationNanos = new long[storageServers];
+        if(remote) {
+            naming.start();
+        }
+        try {
+            for(int i=0; i<storageServers; i++) {
+                roots[i] = Files.createTempDirectory("dfs-storage-").toFile();
+                fill(roots[i], i, inventory);
+                storage[i] = new StorageServer(roots[i], 0, 0);
+                long start = System.nanoTime();
+                if(remote) {
+                    storage[i].start(HOSTNAME, NamingStubs.registration(HOSTNAME));
+                }
+                else {
+                    naming.register(storage[i], storage[i], Path.list(roots[i]));
+                }
+                registrationNanos[i] = System.nanoTime() - start;
+            }
+        }
+        catch(Exception e) {
+            stop();
+            throw e;
+        }
+        service = remote ? NamingStubs.service(HOSTNAME) : naming;
+    }
+
+    /** Returns the client interface of the naming server. */
+    public Service service()
+    {
+        return service;
+    }
+
+    /** Returns the naming server object. */
+    public NamingServer namingServer()
+    {
+        return naming;
+    }
+
+    /** Returns the storage server objects. */
+    public StorageServer[] storageServers()
+    {
+        return storage.clone();
+    }
+
+    /** Returns how long each storage server took to register, in
+        nanoseconds.
+     */
+    public long[] registrationNanos()
+    {
+        return registrationNanos.clone();
+    }
+
+    /** Stops every server and removes the temporary directories. */
+    public void stop()
+    {
+        for(StorageServer server: storage) {
+            if(server != null) {
+                server.stop();
+            }
+        }
+        naming.stop();
+        for(File root: roots) {
+            if(root != null) {
+                deleteRecursive(root);
+            }
+        }
+    }
+
+    /* Creates empty files for storage server number server to register,
+       spread over directories of a thousand files each.
+     */
+    private static void fill(File root, int server, int count) throws IOException
+    {
+        for(int i=0; i<count; i++) {
+            File file = new File(root, "inventory" + server + "/d" + (i / 1000) + "/f" + i);
+            file.getParentFile().mkdirs();
+            if(!file.createNewFile()) {
+                throw new IOException("Cannot create " + file);
+            }
+        }
+    }
+
+    private static void deleteRecursive(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,118 @@
+package naming;
+
+import common.*;
+import storage.*;
+
+/** Recent changes made by the naming server, in the order they were made.
+
+    <p>
+    The log keeps the last <code>CAPACITY</code> events in a ring. Readers
+    ask for the events after a sequence number, and may wait for new events
+    to arrive instead of polling.
+ */
+class MutationLog
+{
+    /** Number of events retained. */
+    static final int CAPACITY = 64 * 1024;
+
+    private final NamespaceEvent[] ring = new NamespaceEvent[CAPACITY];
+    // Sequence number the next event will get
+    private long next = 1;
+    // Sequence number of the oldest event ever stored in the ring
+    private long first = 1;
+
+    /** Appends an event and wakes up waiting readers.
+
+        @return The event appended.
+     */
+    synchronized NamespaceEvent append(NamespaceEvent.Type type, Path path,
+                                       boolean directory, Storage storage,
+                                       Command command)
+    {
+        return append(type, path, directory, storage, command, Long.MAX_VALUE);
+    }
+
+    /** Appends an event that carries a file quota. */
+    synchronized NamespaceEvent append(NamespaceEvent.Type type, Path path,
+                                       boolean directory, Storage storage,
+                                       Command command, long quota)
+    {
+        NamespaceEvent event = new NamespaceEvent(next, type, path, directory,
+                                                  storage, command, quota);
+        ring[(int) (next % CAPACITY)] = event;
+        next++;
+        notifyAll();
+        return event;
+    }
+
+    /** Appends an event received from another naming server, keeping its
+        sequence number.
+
+        @throws IllegalStateException If the event does not directly follow
+                                      the last one in the log.
+     */
+    synchronized void replicate(NamespaceEvent event)
+    {
+        if(event.sequence != next) {
+            throw new IllegalStateException("Expected event " + next
+                                            + ", got " + event.sequence);
+        }
+        ring[(int) (next % CAPACITY)] = event;
+        next++;
+        notifyAll();
+    }
+
+    /** Empties the log and continues numbering after the given sequence
+        number. Used when a copy of the whole tree stands in for the events up
+        to that point.
+     */
+    synchronized void reset(long last)
+    {
+        java.util.Arrays.fill(ring, null);
+        next = last + 1;
+        first = next;
+        notifyAll();
+    }
+
+    /** Returns the sequence number of the last event, or zero if there is
+        none.
+     */
+    synchronized long last()
+    {
+        return next - 1;
+    }
+
+    /** Returns the events after a sequence number.
+
+        @param after Sequence number of the last event already seen.
+        @param limit Maximum number of events to return.
+        @param timeout Time to wait for an event, in milliseconds, if there is
+                       none after <code>after</code> yet.
+        @return The events, oldest first. Empty if none arrived in time.
+        @throws IllegalStateException If some of the events after
+                                      <code>after</code> are no longer
+                                      retained.
+        @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized NamespaceEvent[] read(long after, int limit, long timeout)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while(next - 1 <= after && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        long oldest = Math.max(first, next - CAPACITY);
+        if(after + 1 < oldest) {
+            throw new IllegalStateException("Events after " + after
+                                            + " are no longer retained");
+        }
+        int count = (int) Math.max(0, Math.min(limit, next - 1 - after));
+        NamespaceEvent[] events = new NamespaceEvent[count];
+        for(int i=0; i<count; i++) {
+            events[i] = ring[(int) ((after + 1 + i) % CAPACITY)];
+        }
+        return events;
+    }
+}
@@ -0,0 +1,82 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import storage.*;
+
+/** Change to the naming server's directory tree or file placement.
+
+    <p>
+    Every change is numbered with a sequence number, in the order in which
+    the naming server applied it. Consumers of the events remember the
+    sequence number they have seen last and ask for the events after it.
+ */
+public class NamespaceEvent implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Kinds of change. */
+    public enum Type
+    {
+        /** A file or directory was created. Directories created implicitly
+            when a storage server registers files are not reported separately.
+         */
+        CREATE,
+        /** A file or directory, and everything below it, was deleted. */
+        DELETE,
+        /** A file was moved to a different storage server. */
+        PLACEMENT,
+        /** A storage server registered. The path is the root. Only sent to
+            standby naming servers, not to watchers.
+         */
+        REGISTER,
+        /** The file quota of a directory was set or removed. Only sent to
+            standby naming servers, not to watchers.
+         */
+        QUOTA
+    }
+
+    /** Sequence number of the change. */
+    public final long sequence;
+    /** Kind of change. */
+    public final Type type;
+    /** Path to the file or directory that changed. */
+    public final Path path;
+    /** Whether <code>path</code> refers to a directory. */
+    public final boolean directory;
+    /** Storage server holding the file after the change, or
+        <code>null</code> for directories and deletions.
+     */
+    public final Storage storage;
+    /** Command interface of the same storage server, or <code>null</code>. */
+    public final Command command;
+    /** New file quota of the directory for <code>QUOTA</code> events, where
+        <code>Long.MAX_VALUE</code> means no limit. Unused for other events.
+     */
+    public final long quota;
+
+    NamespaceEvent(long sequence, Type type, Path path, boolean directory,
+                   Storage storage, Command command)
+    {
+        this(sequence, type, path, directory, storage, command, Long.MAX_VALUE);
+    }
+
+    NamespaceEvent(long sequence, Type type, Path path, boolean directory,
+                   Storage storage, Command command, long quota)
+    {
+        this.sequence = sequence;
+        this.type = type;
+        this.path = path;
+        this.directory = directory;
+        this.storage = storage;
+        this.command = command;
+        this.quota = quota;
+    }
+
+    @Override
+    public String toString()
+    {
+        return sequence + " " + type + " " + path;
+    }
+}
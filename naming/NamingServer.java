@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import rmi.*;
 import common.*;
@@ -32,14 +33,24 @@ import java.lang.System.*;
     specifying the remote network address. To make this possible, the client and
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
+
+    <p>
+    A third interface, <code>Replication</code>, is available at
+    <code>REPLICATION_PORT</code>. A <code>StandbyNamingServer</code> uses it to
+    keep a copy of the directory tree and file placement, so that it can take
+    over if this server fails.
  */
-public class NamingServer implements Service, Registration
+public class NamingServer implements Service, Registration, Replication
 {
+    /** Port of the replication interface. */
+    public static final int REPLICATION_PORT = NamingStubs.REGISTRATION_PORT + 1;
 
     // service skeleton used by Clients
     SubSkeleton<Service> serviceSubSkeleton;
     // registration skeleton used by StorageServer
     SubSkeleton<Registration> registrationSubSkeleton;
+    // replication skeleton used by StandbyNamingServer
+    SubSkeleton<Replication> replicationSubSkeleton;
 
     // An arraylist of storageserver stubs that this naming server knows about
     List<StorageStubs> storageServerStubsList = Collections.synchronizedList(new ArrayList<>());
@@ -47,8 +58,53 @@ public class NamingServer implements Service, Registration
     // When client requests for a Storage object
     ConcurrentHashMap<Path, StorageStubs> pathToStorage = new ConcurrentHashMap<Path, StorageStubs>();
 
-    HashSet<Path> directoriesPath;
-    HashSet<Path> filesPath;
+    // Directory tree, used for every lookup and subtree query
+    PathTrie namespace = new PathTrie();
+
+    // Every change to the tree or placement, for watchers. Changes are applied
+    // to the tree and appended here while holding the namespace lock, so the
+    // log order matches the order of the changes.
+    MutationLog log = new MutationLog();
+    // Identifies this run of the naming server to standbys, whose copies
+    // are only valid for the run they were taken from
+    final long incarnation = new Random().nextLong();
+
+    // File creations refused because of a quota
+    AtomicLong quotaRejections = new AtomicLong();
+
+    // Default cap on the data copied to move files between storage servers,
+    // in bytes per second
+    static final long DEFAULT_BALANCE_RATE = 8 * 1024 * 1024;
+    // Pause between two balancing passes
+    static final long BALANCE_INTERVAL = 5 * 60 * 1000;
+    // Time for which writes to a file being switched to its new storage
+    // server are held back, should the naming server fail meanwhile
+    static final long FENCE_TIMEOUT = 30 * 1000;
+    // Snapshot taken on each storage server, for each snapshot of the tree
+    ConcurrentHashMap<Long, Map<StorageStubs, Long>> storageSnapshots =
+        new ConcurrentHashMap<Long, Map<StorageStubs, Long>>();
+    // Serializes the taking of snapshots, each of which holds back writes on
+    // every storage server
+    private final Object snapshotLock = new Object();
+    // Difference in usage between the fullest and emptiest storage servers
+    // that is left alone, as a fraction of the mean usage
+    static final double BALANCE_TOLERANCE = 0.1;
+    volatile long balanceRate = DEFAULT_BALANCE_RATE;
+    // The balancer thread only moves files once enabled with setBalancing
+    volatile boolean balancing = false;
+    Balancer balancer;
+    // Pause between two collections of size changes from the storage servers
+    static final long SIZE_INTERVAL = 1000;
+    // Maximum number of size changes fetched per call
+    static final int SIZE_BATCH = 4096;
+    SizeCollector sizeCollector;
+    // Files being moved, so that new files at the same paths are kept away
+    // from the copy the move will delete
+    ConcurrentHashMap<Path, Move> moving = new ConcurrentHashMap<Path, Move>();
+    // Held for the whole of a balancing pass, so passes never overlap
+    private final Object balanceLock = new Object();
+    AtomicLong filesMoved = new AtomicLong();
+    AtomicLong bytesMoved = new AtomicLong();
 
     // To compare duplicate registration
 //    HashSet<Storage> storageSet = new HashSet<Storage>();
@@ -77,11 +133,185 @@ public class NamingServer implements Service, Registration
         }
     }
 
+    /* Background thread that periodically evens out the data held by the
+       storage servers.
+     */
+    private class Balancer extends Thread
+    {
+        Balancer() {
+            super("NamingServer balancer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while(!isInterrupted()) {
+                    Thread.sleep(BALANCE_INTERVAL);
+                    if(!balancing) {
+                        continue;
+                    }
+                    try {
+                        balance();
+                    }
+                    catch(RuntimeException e) {
+                        // Try again on the next pass
+                        e.printStackTrace();
+                    }
+                }
+            }
+            catch(InterruptedException e) {
+                // Server is stopping
+            }
+        }
+    }
+
+    /* Background thread that collects the size changes of the files on
+       every storage server that reports them.
+     */
+    private class SizeCollector extends Thread
+    {
+        SizeCollector() {
+            super("NamingServer size collector");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while(!isInterrupted()) {
+                    ArrayList<StorageStubs> servers;
+                    synchronized(storageServerStubsList) {
+                        servers = new ArrayList<StorageStubs>(storageServerStubsList);
+                    }
+                    for(StorageStubs stubs: servers) {
+                        try {
+                            collectSizes(stubs);
+                        }
+                        catch(RMIException e) {
+                            // Try again on the next pass
+                        }
+                    }
+                    Thread.sleep(SIZE_INTERVAL);
+                }
+            }
+            catch(InterruptedException e) {
+                // Server is stopping
+            }
+        }
+    }
+
+    /* File chosen to be moved by a balancing pass. */
+    private static class Move
+    {
+        final Path file;
+        final long size;
+        final StorageStubs from;
+        final StorageStubs to;
+        // Set, with the namespace lock held, when clients are pointed at the
+        // new copy, or when the file is deleted before that
+        boolean switched = false;
+        boolean abandoned = false;
+
+        Move(Path file, long size, StorageStubs from, StorageStubs to) {
+            this.file = file;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /** Location of a file in a snapshot, returned by
+        <code>getStorage(long, Path)</code>.
+     */
+    public static class SnapshotFile implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Storage server that held the file when the snapshot was taken. */
+        public final StorageTransfer storage;
+        /** Identifier of the snapshot on that storage server. */
+        public final long id;
+
+        SnapshotFile(StorageTransfer storage, long id) {
+            this.storage = storage;
+            this.id = id;
+        }
+    }
+
+    /** Number of files and directories in a directory tree, not counting the
+        directory at its root, and the size of the files.
+     */
+    public static class Usage implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        public final long files;
+        public final long directories;
+        /** Total size of the files, as last reported by the storage
+            servers.
+         */
+        public final long bytes;
+
+        Usage(long files, long directories, long bytes) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+        }
+    }
+
+    /** One page of a copy of the naming server's state, returned by
+        <code>state</code>.
+     */
+    public static class StatePage implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The events, each directory before its contents. */
+        public final NamespaceEvent[] events;
+        /** Cursor to pass for the next page, or <code>null</code> if this is
+            the last one.
+         */
+        public final Path last;
+
+        StatePage(NamespaceEvent[] events, Path last) {
+            this.events = events;
+            this.last = last;
+        }
+    }
+
+    /** Events returned by one call to <code>watch</code> or
+        <code>tail</code>.
+     */
+    public static class Events implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The events, oldest first. */
+        public final NamespaceEvent[] events;
+        /** Sequence number to pass to the next call. */
+        public final long next;
+
+        Events(NamespaceEvent[] events, long next) {
+            this.events = events;
+            this.next = next;
+        }
+    }
+
     public class StorageStubs {
         Storage storage;
         Command command;
         int storageCode;
         int commandCode;
+        // Sizes of the files on this server, and their total, as last
+        // reported by it; empty for servers that do not report sizes
+        final ConcurrentHashMap<Path, Long> sizes = new ConcurrentHashMap<Path, Long>();
+        final AtomicLong bytes = new AtomicLong();
+        // Where the next collection of size changes from this server resumes
+        long sizeIncarnation = 0;
+        long sizeCursor = 0;
 
         StorageStubs(Storage s, Command c) {
             this.storage = s;
@@ -109,9 +339,8 @@ public class NamingServer implements Service, Registration
         registrationSubSkeleton = new SubSkeleton<Registration>(Registration.class, this, this,
                 new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
 
-        directoriesPath = new HashSet<Path>();
-        directoriesPath.add(new Path());
-        filesPath = new HashSet<Path>();
+        replicationSubSkeleton = new SubSkeleton<Replication>(Replication.class, this, this,
+                new InetSocketAddress(REPLICATION_PORT));
     }
 
     /** Starts the naming server.
@@ -120,15 +349,20 @@ public class NamingServer implements Service, Registration
         After this method is called, it is possible to access the client and
         registration interfaces of the naming server remotely.
 
-        @throws RMIException If either of the two skeletons, for the client or
-                             registration server interfaces, could not be
-                             started. The user should not attempt to start the
-                             server again if an exception occurs.
+        @throws RMIException If any of the skeletons, for the client,
+                             registration or replication interfaces, could not
+                             be started. The user should not attempt to start
+                             the server again if an exception occurs.
      */
     public synchronized void start() throws RMIException
     {
         serviceSubSkeleton.start();
         registrationSubSkeleton.start();
+        replicationSubSkeleton.start();
+        balancer = new Balancer();
+        balancer.start();
+        sizeCollector = new SizeCollector();
+        sizeCollector.start();
     }
 
     /** Stops the naming server.
@@ -144,6 +378,13 @@ public class NamingServer implements Service, Registration
     {
         serviceSubSkeleton.stop();
         registrationSubSkeleton.stop();
+        replicationSubSkeleton.stop();
+        if(balancer != null) {
+            balancer.interrupt();
+        }
+        if(sizeCollector != null) {
+            sizeCollector.interrupt();
+        }
         this.stopped(new Throwable("Stop called on naming server"));
     }
 
@@ -184,62 +425,863 @@ public class NamingServer implements Service, Registration
         }
         // Need to lock path here
 
-        if(directoriesPath.contains(path)){
-            return true;
+        PathTrie.Node node = namespace.get(path);
+        if(node == null) {
+            throw new FileNotFoundException("non-existent");
         }
-        else if(filesPath.contains(path)){
-            return false;
+        return node.directory;
+
+    }
+
+
+    @Override
+    public String[] list(Path directory) throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        if(!isDirectory(directory)) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+
+        PathTrie.Node node = namespace.get(directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
         }
+        return node.names(PathTrie.LIVE);
+    }
+
+    /** Lists one page of the contents of a directory, in sorted order.
 
-        throw new FileNotFoundException("non-existent");
+        <p>
+        Large directories can be iterated in bounded-size pages by passing the
+        last name of each page as <code>startAfter</code> for the next one.
+        Iteration is complete when a page shorter than <code>limit</code> is
+        returned.
 
+        @param directory The directory to be listed.
+        @param startAfter Only names that sort after this one are listed, or
+                          <code>null</code> to start from the first name.
+        @param limit Maximum number of names to return.
+        @param prefix Only names starting with this string are listed, or
+                      <code>null</code> to list all names.
+        @return The names of the directory entries in the page.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+     */
+    public String[] list(Path directory, String startAfter, int limit, String prefix)
+        throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if(!isDirectory(directory)) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+
+        PathTrie.Node node = namespace.get(directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        // Names with the prefix are contiguous, starting at the prefix itself
+        Iterable<Map.Entry<String, PathTrie.Node>> candidates =
+            node.children(null, false, PathTrie.LIVE);
+        if(prefix != null && (startAfter == null || startAfter.compareTo(prefix) < 0)) {
+            candidates = node.children(prefix, true, PathTrie.LIVE);
+        }
+        else if(startAfter != null) {
+            candidates = node.children(startAfter, false, PathTrie.LIVE);
+        }
+
+        ArrayList<String> page = new ArrayList<String>();
+        for(Map.Entry<String, PathTrie.Node> entry: candidates) {
+            String name = entry.getKey();
+            if(page.size() == limit || (prefix != null && !name.startsWith(prefix))) {
+                break;
+            }
+            page.add(name);
+        }
+        return page.toArray(new String[page.size()]);
+    }
+
+    /** Returns the number of files and directories below a directory, and
+        the total size of the files.
+
+        <p>
+        The counts are maintained as entries are created, so this takes
+        constant time regardless of the size of the tree. The size is
+        maintained the same way as storage servers report changes, as
+        described in <code>totalBytes</code>.
+
+        @param directory The directory at the root of the tree.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+     */
+    public Usage usage(Path directory) throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        if(!isDirectory(directory)) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        PathTrie.Node node = namespace.get(directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        return new Usage(node.files.get(), node.directories.get(), node.bytes.get());
     }
 
+    /** Returns changes to a file or directory tree made after a given point.
+
+        <p>
+        Consumers start from the value of <code>lastSequence</code> (after
+        taking a listing, if they need one), and afterwards always pass the
+        <code>next</code> value of the previous result. If there are no new
+        changes yet, the call waits for up to <code>timeout</code>
+        milliseconds for one, so consumers need not poll.
+
+        <p>
+        Only a bounded number of recent changes is retained. A consumer that
+        falls too far behind gets an <code>IllegalStateException</code>, and
+        must list the tree again and resume from <code>lastSequence</code>.
+
+        @param path The file or directory to watch.
+        @param recursive If <code>true</code>, changes anywhere below
+                         <code>path</code> are returned; otherwise only
+                         changes to <code>path</code> and its direct entries.
+        @param after Sequence number of the last change already seen.
+        @param limit Maximum number of changes to examine in this call.
+        @param timeout Time to wait for a change, in milliseconds.
+        @return The matching changes, oldest first, and the sequence number to
+                resume from.
+        @throws IllegalStateException If changes after <code>after</code> are
+                                      no longer retained.
+        @throws IllegalArgumentException If <code>limit</code> is not positive.
+        @throws InterruptedException If interrupted while waiting.
+     */
+    public Events watch(Path path, boolean recursive, long after, int limit, long timeout)
+        throws InterruptedException
+    {
+        if(path == null) {
+            throw new NullPointerException();
+        }
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        NamespaceEvent[] events = log.read(after, limit, timeout);
+        ArrayList<NamespaceEvent> matching = new ArrayList<NamespaceEvent>();
+        for(NamespaceEvent event: events) {
+            if(event.type == NamespaceEvent.Type.REGISTER
+                    || event.type == NamespaceEvent.Type.QUOTA) {
+                continue;
+            }
+            Path changed = event.path;
+            boolean below = recursive ? changed.isSubpath(path)
+                    : changed.equals(path) || (!changed.isRoot() && changed.parent().equals(path));
+            // Deleting a directory also deletes everything watched below it
+            boolean above = event.type == NamespaceEvent.Type.DELETE && path.isSubpath(changed);
+            if(below || above) {
+                matching.add(event);
+            }
+        }
+        long next = events.length == 0 ? after : events[events.length - 1].sequence;
+        return new Events(matching.toArray(new NamespaceEvent[matching.size()]), next);
+    }
 
+    /** Returns the sequence number of the latest change, or zero if nothing
+        has changed since the naming server was created.
+     */
     @Override
-    public String[] list(Path directory) throws FileNotFoundException
+    public long lastSequence()
+    {
+        return log.last();
+    }
+
+    /** Limits the number of files that may be created below a directory.
+
+        <p>
+        Once the limit is reached, <code>createFile</code> throws
+        <code>IllegalStateException</code> for any path below the directory.
+        Files already present, and files added when storage servers register,
+        are not refused. Quotas are copied to standby naming servers.
+
+        @param directory The directory to be limited.
+        @param maxFiles Maximum number of files below the directory, or a
+                        negative number to remove the limit.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+     */
+    public void setFileQuota(Path directory, long maxFiles) throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        long quota = maxFiles < 0 ? Long.MAX_VALUE : maxFiles;
+        synchronized(namespace) {
+            if(!namespace.setFileQuota(directory, quota)) {
+                throw new FileNotFoundException("Path is not a directory");
+            }
+            log.append(NamespaceEvent.Type.QUOTA, directory, true, null, null, quota);
+        }
+    }
+
+    /** Returns the number of file creations refused because of a quota. */
+    public long quotaRejections()
+    {
+        return quotaRejections.get();
+    }
+
+    /** Sets the cap on the data copied to move files between storage servers.
+
+        @param bytesPerSecond Maximum balancing rate, in bytes per second.
+        @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setBalanceRate(long bytesPerSecond)
+    {
+        if(bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Balance rate must be positive");
+        }
+        balanceRate = bytesPerSecond;
+    }
+
+    /** Enables or disables the periodic balancing of the storage servers.
+
+        <p>
+        Balancing is disabled by default. While a file is switched to its new
+        storage server, writes to it wait for a moment, and writes through
+        the old storage server afterwards get
+        <code>FileNotFoundException</code>, so clients must be prepared to ask
+        for the file's storage server again. Only storage servers whose
+        command interface is a <code>StorageControl</code> take part.
+
+        @param enabled Whether files are moved every
+                       <code>BALANCE_INTERVAL</code> milliseconds.
+     */
+    public void setBalancing(boolean enabled)
+    {
+        balancing = enabled;
+    }
+
+    /** Returns the number of files moved between storage servers. */
+    public long filesMoved()
+    {
+        return filesMoved.get();
+    }
+
+    /** Returns the number of bytes moved between storage servers. */
+    public long bytesMoved()
+    {
+        return bytesMoved.get();
+    }
+
+    /** Moves files from the fullest storage servers to the emptiest ones.
+
+        <p>
+        Once started, the naming server runs this every
+        <code>BALANCE_INTERVAL</code> milliseconds if balancing has been
+        enabled with <code>setBalancing</code>. Each pass plans moves from the
+        sizes the storage servers last reported, without asking them again,
+        until the difference between the fullest and emptiest server is
+        within <code>BALANCE_TOLERANCE</code> of the mean. It then carries
+        them out one at a time, with each copy read at no more than the
+        balancing rate.
+
+        <p>
+        A file is moved by having the new storage server copy it from the old
+        one, while clients keep using the old copy. The old copy is then
+        fenced, so writes to it wait, and clients are pointed at the new copy
+        only if the old one has not changed since the copy began. The old
+        copy is deleted at once, and the waiting writes fail with
+        <code>FileNotFoundException</code>, so they are retried on the new
+        copy and no acknowledged write is lost. Moves of files that are
+        written or deleted during the copy are abandoned. A file created at
+        the same path meanwhile is never placed on the storage server whose
+        copy the move will delete.
+
+        @return The number of files moved.
+        @throws InterruptedException If interrupted between moves.
+     */
+    public int balance() throws InterruptedException
+    {
+        synchronized(balanceLock) {
+            List<Move> plan = planMoves();
+            int moved = 0;
+            for(Move move: plan) {
+                boolean done;
+                try {
+                    done = moveFile(move);
+                }
+                catch(RuntimeException e) {
+                    // Go on with the other moves
+                    e.printStackTrace();
+                    done = false;
+                }
+                if(done) {
+                    moved++;
+                    filesMoved.incrementAndGet();
+                    bytesMoved.addAndGet(move.size);
+                }
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return moved;
+        }
+    }
+
+    /* Plans the moves of one balancing pass, from the sizes last reported
+       by the storage servers that report them.
+     */
+    private List<Move> planMoves()
+    {
+        HashMap<StorageStubs, Long> usage = new HashMap<StorageStubs, Long>();
+        HashMap<StorageStubs, ArrayList<Path>> held = new HashMap<StorageStubs, ArrayList<Path>>();
+        synchronized(storageServerStubsList) {
+            for(StorageStubs stubs: storageServerStubsList) {
+                if(stubs.command instanceof StorageControl && stubs.sizeIncarnation != 0) {
+                    usage.put(stubs, stubs.bytes.get());
+                    held.put(stubs, new ArrayList<Path>());
+                }
+            }
+        }
+        ArrayList<Move> plan = new ArrayList<Move>();
+        if(usage.size() < 2) {
+            return plan;
+        }
+        long total = 0;
+        for(long used: usage.values()) {
+            total += used;
+        }
+        long tolerance = (long) (total / usage.size() * BALANCE_TOLERANCE);
+        // Only the files clients use are moved; other copies are left alone
+        HashMap<Path, Long> sizes = new HashMap<Path, Long>();
+        for(Map.Entry<Path, StorageStubs> entry: pathToStorage.entrySet()) {
+            StorageStubs stubs = entry.getValue();
+            Long size = stubs.sizes.get(entry.getKey());
+            if(held.containsKey(stubs) && size != null) {
+                sizes.put(entry.getKey(), size);
+                held.get(stubs).add(entry.getKey());
+            }
+        }
+        for(ArrayList<Path> files: held.values()) {
+            files.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+        }
+        while(true) {
+            StorageStubs fullest = null;
+            StorageStubs emptiest = null;
+            for(StorageStubs stubs: usage.keySet()) {
+                if(fullest == null || usage.get(stubs) > usage.get(fullest)) {
+                    fullest = stubs;
+                }
+                if(emptiest == null || usage.get(stubs) < usage.get(emptiest)) {
+                    emptiest = stubs;
+                }
+            }
+            long spread = usage.get(fullest) - usage.get(emptiest);
+            if(spread <= tolerance) {
+                break;
+            }
+            // The largest file that does not overshoot the middle
+            Path pick = null;
+            for(Path file: held.get(fullest)) {
+                long size = sizes.get(file);
+                if(size > 0 && size <= spread / 2) {
+                    pick = file;
+                    break;
+                }
+            }
+            if(pick == null) {
+                break;
+            }
+            long size = sizes.get(pick);
+            held.get(fullest).remove(pick);
+            usage.put(fullest, usage.get(fullest) - size);
+            usage.put(emptiest, usage.get(emptiest) + size);
+            plan.add(new Move(pick, size, fullest, emptiest));
+        }
+        return plan;
+    }
+
+    /* Copies a file to its new storage server and then points clients at the
+       new copy. The copy that is no longer used, old or new, is deleted.
+       Returns true if the file was moved.
+     */
+    private boolean moveFile(Move move)
+    {
+        synchronized(namespace) {
+            if(pathToStorage.get(move.file) != move.from
+                    || moving.putIfAbsent(move.file, move) != null) {
+                return false;
+            }
+        }
+        try {
+            StorageControl source = (StorageControl) move.from.command;
+            StorageControl target = (StorageControl) move.to.command;
+            long version = 0;
+            try {
+                version = source.version(move.file);
+                if(target.copy(move.file, move.from.storage, balanceRate)) {
+                    // Writes to the old copy wait from here, so none is
+                    // made between this check and its deletion
+                    if(source.fence(move.file, FENCE_TIMEOUT) == version) {
+                        switchTo(move, move.from, move.to);
+                    }
+                    if(!move.switched) {
+                        source.unfence(move.file);
+                    }
+                }
+            }
+            catch(RMIException | IOException e) {
+                // Leave the file where it is
+            }
+            if(move.switched) {
+                try {
+                    if(!source.retire(move.file, version)) {
+                        // The fence lapsed and the old copy was written
+                        // after all, so it stays the one clients use
+                        switchTo(move, move.to, move.from);
+                    }
+                }
+                catch(RMIException e) {
+                    // Reported as a conflict, and deleted, when the server
+                    // registers again
+                }
+            }
+            // No new file at this path is placed on this server until the
+            // move is over, so the copy deleted is the one this move made
+            // or left behind
+            StorageStubs unused = move.to;
+            if(!move.switched && pathToStorage.get(move.file) != unused) {
+                try {
+                    unused.command.delete(move.file);
+                }
+                catch(RMIException e) {
+                    // Reported as a conflict, and deleted, when the server
+                    // registers again
+                }
+            }
+            return move.switched;
+        }
+        finally {
+            moving.remove(move.file, move);
+        }
+    }
+
+    /* Points clients at another copy of a file being moved, unless the file
+       was deleted, or created again after a delete, meanwhile.
+     */
+    private void switchTo(Move move, StorageStubs from, StorageStubs to)
+    {
+        synchronized(namespace) {
+            if(move.abandoned || !pathToStorage.replace(move.file, from, to)) {
+                return;
+            }
+            move.switched = to == move.to;
+            placed(move.file, to);
+            log.append(NamespaceEvent.Type.PLACEMENT, move.file, false,
+                       to.storage, to.command);
+        }
+    }
+
+    /* Picks a storage server for a new file at random. While the path is
+       being moved, the server whose copy the move will delete is avoided.
+       Throws IllegalStateException, as Service.createFile documents, if no
+       storage server is registered. Called with the namespace lock held.
+     */
+    private StorageStubs placeNewFile(Path file)
+    {
+        Move move = moving.get(file);
+        synchronized(storageServerStubsList) {
+            if(storageServerStubsList.isEmpty()) {
+                throw new IllegalStateException("No storage servers are registered");
+            }
+            ArrayList<StorageStubs> candidates = new ArrayList<StorageStubs>(storageServerStubsList);
+            if(move != null && candidates.size() > 1) {
+                candidates.remove(move.switched ? move.from : move.to);
+            }
+            return candidates.get(new Random().nextInt(candidates.size()));
+        }
+    }
+
+    /** Returns the total size of the files in a directory tree.
+
+        <p>
+        Storage servers whose command interface is a
+        <code>StorageControl</code> report the files whose size changed, and
+        the naming server collects the reports every
+        <code>SIZE_INTERVAL</code> milliseconds. Each directory keeps the
+        total of the files below it, so this takes constant time. The result
+        may lag writes by about <code>SIZE_INTERVAL</code>. Files on storage
+        servers that do not report sizes count as empty.
+
+        @param path The file or directory at the root of the tree.
+        @throws FileNotFoundException If the path does not exist.
+     */
+    public long totalBytes(Path path) throws FileNotFoundException
+    {
+        if(path == null) {
+            throw new NullPointerException();
+        }
+        PathTrie.Node node = namespace.get(path);
+        if(node == null) {
+            throw new FileNotFoundException("non-existent");
+        }
+        return node.bytes.get();
+    }
+
+    /* Fetches the size changes of one storage server and applies them, until
+       it has no more.
+     */
+    private void collectSizes(StorageStubs stubs) throws RMIException
+    {
+        if(!(stubs.command instanceof StorageControl)) {
+            return;
+        }
+        StorageControl control = (StorageControl) stubs.command;
+        while(true) {
+            StorageControl.SizeChanges changes =
+                control.sizeChanges(stubs.sizeIncarnation, stubs.sizeCursor, SIZE_BATCH);
+            synchronized(namespace) {
+                if(changes.incarnation != stubs.sizeIncarnation) {
+                    // Restarted; every file it holds is reported again
+                    stubs.sizes.clear();
+                    stubs.bytes.set(0);
+                    stubs.sizeIncarnation = changes.incarnation;
+                }
+                for(int i=0; i<changes.files.length; i++) {
+                    Path file = changes.files[i];
+                    long size = changes.sizes[i];
+                    Long old = size < 0 ? stubs.sizes.remove(file) : stubs.sizes.put(file, size);
+                    stubs.bytes.addAndGet(Math.max(0, size) - (old == null ? 0 : old));
+                    // Copies other than the one clients use count towards
+                    // the server, but not towards the tree
+                    if(pathToStorage.get(file) == stubs) {
+                        namespace.setBytes(file, Math.max(0, size));
+                    }
+                }
+                stubs.sizeCursor = changes.next;
+            }
+            if(changes.files.length < SIZE_BATCH) {
+                return;
+            }
+        }
+    }
+
+    /* Records the storage server a file was placed on in the tree, for
+       snapshots, and sets the size of the file to the one last reported by
+       that server. Called with the namespace lock held, whenever a file is
+       placed.
+     */
+    private void placed(Path file, StorageStubs stubs)
+    {
+        namespace.place(file, stubs);
+        Long size = stubs.sizes.get(file);
+        namespace.setBytes(file, size == null ? 0 : size);
+    }
+
+    /** Returns one batch of the files and directories in a directory tree.
+
+        <p>
+        Entries are returned in <code>Path</code> order, so each directory
+        comes right before its contents. The whole tree is walked by passing
+        the last path of each batch as <code>startAfter</code> for the next
+        one, until an empty batch is returned.
+
+        @param directory The directory at the root of the tree. It is not
+                         itself part of the walk.
+        @param startAfter Only paths after this one are returned, or
+                          <code>null</code> to start from the beginning.
+        @param limit Maximum number of paths to return.
+        @return The paths in the batch.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>limit</code> is not positive,
+                                         or <code>startAfter</code> does not
+                                         lie below <code>directory</code>.
+     */
+    public Path[] walk(Path directory, Path startAfter, int limit)
+        throws FileNotFoundException
     {
         if(directory == null) {
             throw new NullPointerException();
         }
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
         if(!isDirectory(directory)) {
             throw new FileNotFoundException("Path is not a directory");
         }
-//        if(!pathToStorage.containsKey(directory)){
-//            throw new FileNotFoundException("Path does not exist");
-//        }
+        int depth = directory.components.size();
+        if(startAfter != null && (startAfter.components.size() <= depth
+                || !startAfter.components.subList(0, depth).equals(directory.components))) {
+            throw new IllegalArgumentException("Cursor is not below the directory");
+        }
 
-        String dirString = directory.toString();
-//        System.out.println("Listing directory: "+dirString);
-        List<Path> allPaths = new ArrayList<>(pathToStorage.keySet());
-        HashSet<String> filePaths = new HashSet<String>();
-        // Go through all paths
-        for(Path p: allPaths){
-            String temp = p.toString();
-            // Find paths that contain this directory
-            if(temp.contains(dirString)){
-//                System.out.println("match: "+temp);
-                String[] components = temp.split("/");
-                if(dirString.equals("/")){
-                    // Listing root directory
-//                    System.out.println("Adding for root list: "+components[1]);
-                    filePaths.add(components[1]);
+        PathTrie.Node node = namespace.get(directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        ArrayList<Path> page = new ArrayList<Path>();
+        walkHelper(directory, node, PathTrie.LIVE, startAfter, limit, page);
+        return page.toArray(new Path[page.size()]);
+    }
+
+    /** Takes a snapshot of the directory tree below a path, and of the
+        contents of the files in it.
+
+        <p>
+        The tree can then be listed and walked as it was at this moment, and
+        its files read as they were with <code>getStorage(long, Path)</code>,
+        while clients keep changing them, until the snapshot is released.
+        Nodes are shared with the live tree; while snapshots are held, each
+        change to the tree also records the entry it replaces, in constant
+        time.
+
+        <p>
+        To give one point in time across the tree and the files, writes are
+        held back on every storage server while the tree and each storage
+        server take their snapshots. Those are constant-time operations, so
+        writers wait for about one round trip to each storage server. Storage
+        servers that cannot be reached are left out, and files they hold
+        cannot be read from the snapshot. Snapshots are held in memory and are
+        not replicated to standby naming servers.
+
+        @param path The file or directory at the root of the snapshot.
+        @return The identifier of the snapshot.
+        @throws FileNotFoundException If the path does not exist.
+     */
+    public long snapshot(Path path) throws FileNotFoundException
+    {
+        if(path == null) {
+            throw new NullPointerException();
+        }
+        synchronized(snapshotLock) {
+            ArrayList<StorageStubs> servers;
+            synchronized(namespace) {
+                servers = new ArrayList<StorageStubs>(storageServerStubsList);
+            }
+            // Once every write has stopped, no file can change between the
+            // snapshots of the tree and of the storage servers
+            ArrayList<StorageStubs> held = new ArrayList<StorageStubs>();
+            try {
+                for(StorageStubs stubs: servers) {
+                    if(!(stubs.command instanceof StorageControl)) {
+                        continue;
+                    }
+                    try {
+                        ((StorageControl)stubs.command).hold(FENCE_TIMEOUT);
+                        held.add(stubs);
+                    }
+                    catch(RMIException e) {
+                        // Left out of the snapshot
+                    }
                 }
-                else {
-                    String newDirString = dirString.substring(1);
-                    for(int i=0; i<components.length; i++){
-                        if(components[i].equals(newDirString) && i+1 < components.length ){
-                            filePaths.add(components[i+1]);
-//                            System.out.println("Found child! "+components[i+1]);
+                // The namespace lock keeps out creations, deletions and moves
+                // until every storage server has its snapshot
+                synchronized(namespace) {
+                    long id = namespace.snapshot(path);
+                    if(id < 0) {
+                        throw new FileNotFoundException("non-existent");
+                    }
+                    HashMap<StorageStubs, Long> ids = new HashMap<StorageStubs, Long>();
+                    for(StorageStubs stubs: held) {
+                        try {
+                            ids.put(stubs, ((StorageControl)stubs.command).snapshot(path));
+                        }
+                        catch(RMIException e) {
+                            // Left out of the snapshot
                         }
                     }
+                    storageSnapshots.put(id, ids);
+                    return id;
                 }
+            }
+            finally {
+                for(StorageStubs stubs: held) {
+                    try {
+                        ((StorageControl)stubs.command).unhold();
+                    }
+                    catch(RMIException e) {
+                        // The hold lapses by itself
+                    }
+                }
+            }
+        }
+    }
 
+    /** Releases a snapshot taken with <code>snapshot</code>, on the naming
+        server and on the storage servers.
+
+        @param id The identifier of the snapshot.
+        @return <code>true</code> if the snapshot was held.
+     */
+    public boolean releaseSnapshot(long id)
+    {
+        Map<StorageStubs, Long> ids = storageSnapshots.remove(id);
+        if(ids != null) {
+            for(Map.Entry<StorageStubs, Long> entry: ids.entrySet()) {
+                try {
+                    ((StorageControl)entry.getKey().command).releaseSnapshot(entry.getValue());
+                }
+                catch(RMIException e) {
+                    // The storage server drops its snapshots when it restarts
+                }
             }
         }
-        return filePaths.toArray(new String[filePaths.size()]);
+        return namespace.release(id);
+    }
+
+    /** Returns the storage server holding a file as it was in a snapshot,
+        and the snapshot to read it from on that server.
+
+        <p>
+        A file whose creation was still under way when the snapshot was taken
+        is listed in the snapshot, but reading it fails with
+        <code>FileNotFoundException</code>.
+
+        @param snapshot The identifier of the snapshot.
+        @param file Path to the file.
+        @return The storage server and its snapshot.
+        @throws FileNotFoundException If the path was not a file in the
+                                      snapshot, or the storage server holding
+                                      it was left out of the snapshot.
+        @throws IllegalArgumentException If the snapshot is not held.
+     */
+    public SnapshotFile getStorage(long snapshot, Path file) throws FileNotFoundException
+    {
+        if(file == null) {
+            throw new NullPointerException();
+        }
+        PathTrie.Node node = namespace.get(snapshot, file);
+        if(node == null || node.directory) {
+            throw new FileNotFoundException("Path is not a file");
+        }
+        Map<StorageStubs, Long> ids = storageSnapshots.get(snapshot);
+        Long id = ids == null ? null : ids.get(node.location);
+        if(id == null || !(((StorageStubs)node.location).storage instanceof StorageTransfer)) {
+            throw new FileNotFoundException("Storage server is not part of the snapshot");
+        }
+        return new SnapshotFile((StorageTransfer)((StorageStubs)node.location).storage, id);
+    }
+
+    /** Determines whether a path referred to a directory in a snapshot.
+
+        @param snapshot The identifier of the snapshot.
+        @param path The path to check.
+        @return <code>true</code> if the path was a directory.
+        @throws FileNotFoundException If the path did not exist in the
+                                      snapshot.
+        @throws IllegalArgumentException If the snapshot is not held.
+     */
+    public boolean isDirectory(long snapshot, Path path) throws FileNotFoundException
+    {
+        if(path == null) {
+            throw new NullPointerException();
+        }
+        PathTrie.Node node = namespace.get(snapshot, path);
+        if(node == null) {
+            throw new FileNotFoundException("non-existent");
+        }
+        return node.directory;
+    }
 
+    /** Lists the contents of a directory as they were in a snapshot.
+
+        @param snapshot The identifier of the snapshot.
+        @param directory The directory to be listed.
+        @return The names of the directory entries.
+        @throws FileNotFoundException If the path was not a directory in the
+                                      snapshot.
+        @throws IllegalArgumentException If the snapshot is not held.
+     */
+    public String[] list(long snapshot, Path directory) throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        PathTrie.Node node = namespace.get(snapshot, directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        return node.names(namespace.epochOf(snapshot));
+    }
+
+    /** Returns one batch of the files and directories in a directory tree as
+        it was in a snapshot. Batches work as in <code>walk</code>.
+
+        @param snapshot The identifier of the snapshot.
+        @param directory The directory at the root of the tree.
+        @param startAfter Only paths after this one are returned, or
+                          <code>null</code> to start from the beginning.
+        @param limit Maximum number of paths to return.
+        @return The paths in the batch.
+        @throws FileNotFoundException If the path was not a directory in the
+                                      snapshot.
+        @throws IllegalArgumentException If the snapshot is not held, if
+                                         <code>limit</code> is not positive,
+                                         or if <code>startAfter</code> does
+                                         not lie below
+                                         <code>directory</code>.
+     */
+    public Path[] walk(long snapshot, Path directory, Path startAfter, int limit)
+        throws FileNotFoundException
+    {
+        if(directory == null) {
+            throw new NullPointerException();
+        }
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        int depth = directory.components.size();
+        if(startAfter != null && (startAfter.components.size() <= depth
+                || !startAfter.components.subList(0, depth).equals(directory.components))) {
+            throw new IllegalArgumentException("Cursor is not below the directory");
+        }
+        PathTrie.Node node = namespace.get(snapshot, directory);
+        if(node == null || !node.directory) {
+            throw new FileNotFoundException("Path is not a directory");
+        }
+        ArrayList<Path> page = new ArrayList<Path>();
+        walkHelper(directory, node, namespace.epochOf(snapshot), startAfter, limit, page);
+        return page.toArray(new Path[page.size()]);
+    }
 
+    /* Adds the entries below dir, as they were at the given epoch of the
+       tree, that follow resume, which is null or lies below dir, until the
+       page is full.
+     */
+    private void walkHelper(Path dir, PathTrie.Node node, long at, Path resume, int limit,
+                            ArrayList<Path> page)
+    {
+        if(!node.directory) {
+            return;
+        }
+        String resumeName = null;
+        if(resume != null) {
+            resumeName = resume.components.get(dir.components.size());
+        }
+        for(Map.Entry<String, PathTrie.Node> entry: node.children(resumeName, true, at)) {
+            if(page.size() == limit) {
+                return;
+            }
+            String name = entry.getKey();
+            Path child = new Path(dir, name);
+            if(name.equals(resumeName)) {
+                // Either the cursor itself, or one of its ancestors
+                walkHelper(child, entry.getValue(), at, child.equals(resume) ? null : resume,
+                           limit, page);
+            }
+            else {
+                page.add(child);
+                walkHelper(child, entry.getValue(), at, null, limit, page);
+            }
+        }
     }
 
     @Override
@@ -249,27 +1291,74 @@ public class NamingServer implements Service, Registration
         if(file == null){
             throw new NullPointerException("File path is null");
         }
-        if(file.isRoot()){
+        if(file.isRoot() || isReserved(file)){
             return false;
         }
-        if(directoriesPath.contains(file) || filesPath.contains(file)){
+        if(namespace.get(file) != null){
             return false;
         }
-        if(directoriesPath.contains(file.parent()) == false) {
+        PathTrie.Node parent = namespace.get(file.parent());
+        if(parent == null || !parent.directory) {
             throw new FileNotFoundException("Parent directory non-existent");
         }
 
+        StorageStubs targetStorage;
+        synchronized(namespace) {
+            // Pick the server before claiming the name, so that a create
+            // that cannot be placed leaves nothing behind
+            targetStorage = placeNewFile(file);
+            // Claim the name first so that concurrent creates cannot both
+            // succeed
+            try {
+                if(!namespace.add(file, false)) {
+                    return false;
+                }
+            }
+            catch(IllegalStateException e) {
+                quotaRejections.incrementAndGet();
+                throw e;
+            }
+            pathToStorage.put(file, targetStorage);
+            placed(file, targetStorage);
+            log.append(NamespaceEvent.Type.CREATE, file, false,
+                       targetStorage.storage, targetStorage.command);
+        }
+        boolean created;
         try {
-            int storageIndex = new Random().nextInt(storageServerStubsList.size());
-            StorageStubs targetStorage = storageServerStubsList.get(storageIndex);
-            targetStorage.command.create(file);
-            filesPath.add(file);
+            created = targetStorage.command.create(file);
         }
         catch(RMIException e) {
+            unclaim(file, targetStorage);
             throw new RMIException("RMI error while creating file");
         }
-        return true;
+        if(!created) {
+            // The storage server refused the path, so there is no file to
+            // hand out
+            unclaim(file, targetStorage);
+        }
+        return created;
+
+    }
 
+    /* Removes a file claimed by createFile whose storage server did not
+       create it.
+     */
+    private void unclaim(Path file, StorageStubs targetStorage)
+    {
+        synchronized(namespace) {
+            // Unless a client deleted the file meanwhile
+            if(pathToStorage.remove(file, targetStorage) && namespace.remove(file) != null) {
+                log.append(NamespaceEvent.Type.DELETE, file, false, null, null);
+            }
+        }
+    }
+
+    /* Returns true for paths under the name that storage servers keep for
+       their own files, which clients may not create.
+     */
+    private static boolean isReserved(Path path)
+    {
+        return !path.isRoot() && path.components.get(0).equals(StorageServer.PRIVATE_DIRECTORY);
     }
 
     @Override
@@ -277,18 +1366,24 @@ public class NamingServer implements Service, Registration
     {
         if(directory == null)
             throw new NullPointerException("Directory is null");
-        if(directory.isRoot()) {
+        if(directory.isRoot() || isReserved(directory)) {
             return false;
         }
-        if(directoriesPath.contains(directory) || filesPath.contains(directory)){
+        if(namespace.get(directory) != null){
             return false;
         }
-        if(directoriesPath.contains(directory.parent()) == false){
+        PathTrie.Node parent = namespace.get(directory.parent());
+        if(parent == null || !parent.directory){
             throw new FileNotFoundException("Parent does not exist");
         }
 
         // locking and unlocking needed
-        directoriesPath.add(directory);
+        synchronized(namespace) {
+            if(!namespace.add(directory, true)) {
+                return false;
+            }
+            log.append(NamespaceEvent.Type.CREATE, directory, true, null, null);
+        }
         return true;
 
     }
@@ -296,7 +1391,46 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean delete(Path path) throws FileNotFoundException
     {
-        throw new UnsupportedOperationException("not implemented");
+        if(path == null) {
+            throw new NullPointerException("Path is null");
+        }
+        if(path.isRoot()) {
+            return false;
+        }
+        HashSet<StorageStubs> servers = new HashSet<StorageStubs>();
+        synchronized(namespace) {
+            PathTrie.Node removed = namespace.remove(path);
+            if(removed == null) {
+                throw new FileNotFoundException("Path does not exist");
+            }
+            log.append(NamespaceEvent.Type.DELETE, path, removed.directory, null, null);
+            // Placements go together with the names, so that a move
+            // finishing meanwhile cannot place a deleted file
+            ArrayList<Path> files = new ArrayList<Path>();
+            PathTrie.files(path, removed, files);
+            for(Path f: files) {
+                StorageStubs stubs = pathToStorage.remove(f);
+                if(stubs != null) {
+                    servers.add(stubs);
+                }
+                Move move = moving.get(f);
+                if(move != null) {
+                    move.abandoned = true;
+                }
+            }
+        }
+
+        // Every storage server holding part of the tree deletes its own copy
+        boolean success = true;
+        for(StorageStubs stubs: servers) {
+            try {
+                success &= stubs.command.delete(path);
+            }
+            catch(RMIException e) {
+                success = false;
+            }
+        }
+        return success;
     }
 
     @Override
@@ -323,12 +1457,16 @@ public class NamingServer implements Service, Registration
 
 
         StorageStubs storageStubs = new StorageStubs(client_stub, command_stub);
-        for(StorageStubs stubs: storageServerStubsList){
-            if(stubs.storage.hashCode() == client_stub.hashCode() && stubs.command.hashCode() == command_stub.hashCode()) {
-                throw new IllegalStateException("Server is already registered");
+        synchronized(namespace) {
+            for(StorageStubs stubs: storageServerStubsList){
+                if(stubs.storage.hashCode() == client_stub.hashCode() && stubs.command.hashCode() == command_stub.hashCode()) {
+                    throw new IllegalStateException("Server is already registered");
+                }
             }
+            storageServerStubsList.add(storageStubs);
+            log.append(NamespaceEvent.Type.REGISTER, new Path(), true,
+                       client_stub, command_stub);
         }
-        storageServerStubsList.add(storageStubs);
         /*
         Reference: http://www.codejava.net/java-core/collections/understanding-collections-and-thread-safety-in-java
         * */
@@ -338,79 +1476,221 @@ public class NamingServer implements Service, Registration
 //            }
 //            storageServerStubsList.add(storageStubs);
 //        }
-        // New delete
+        // Files that already exist, or lie below an existing file, are not
+        // added and the storage server is told to delete its copies
         ArrayList<Path> toDelete = new ArrayList<Path>();
         for(Path path: files) {
             if (path.isRoot())
                 continue;
 
-            int pathLen = path.components.size();
-            //boolean hashFlag = false;
-            boolean hashFlag = true;
-            if(pathToStorage.containsKey(path)) {
-//                System.out.println("Does not contain key: "+path.toString());
-                hashFlag = false;
-
+            synchronized(namespace) {
+                if(namespace.addFile(path)) {
+                    pathToStorage.put(path, storageStubs);
+                    placed(path, storageStubs);
+                    log.append(NamespaceEvent.Type.CREATE, path, false,
+                               client_stub, command_stub);
+                }
+                else {
+                    toDelete.add(path);
+                }
             }
-            for(Path pathKey : pathToStorage.keySet()) {
-//                System.out.println("Comparing Path: "+path.toString()+" and pathKey: "+pathKey.toString());
-                if (pathLen < pathKey.components.size()) {
-                    // checking logic
-
-                    boolean componentFlag1 = false;
-                    for (int i = 0; i < path.components.size(); i++) {
+        }
+        Path[] pathArray = toDelete.toArray(new Path[toDelete.size()]);
+        return pathArray;
+    }
 
-                        if (!path.components.get(i).equals(pathKey.components.get(i))) {
-                            componentFlag1 = true;
-                            break;
-                        }
+    // The following methods are documented in Replication.java.
+    @Override
+    public long incarnation()
+    {
+        return incarnation;
+    }
 
+    @Override
+    public StatePage state(long incarnation, Path startAfter, int limit)
+    {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        checkIncarnation(incarnation);
+        if(startAfter != null && startAfter.isRoot()) {
+            throw new IllegalArgumentException("Cursor is not below the root");
+        }
+        ArrayList<NamespaceEvent> events = new ArrayList<NamespaceEvent>();
+        // Held for one page only, so changes wait for at most one page
+        synchronized(namespace) {
+            if(startAfter == null) {
+                synchronized(storageServerStubsList) {
+                    for(StorageStubs stubs: storageServerStubsList) {
+                        events.add(new NamespaceEvent(0, NamespaceEvent.Type.REGISTER,
+                                                      new Path(), true, stubs.storage,
+                                                      stubs.command));
                     }
-                    hashFlag = componentFlag1 && hashFlag;
                 }
+                addQuota(new Path(), namespace.root, events);
+            }
+            ArrayList<Path> page = new ArrayList<Path>();
+            walkHelper(new Path(), namespace.root, PathTrie.LIVE, startAfter, limit, page);
+            for(Path path: page) {
+                stateHelper(path, namespace.get(path), events);
             }
+            Path last = page.size() < limit ? null : page.get(page.size() - 1);
+            return new StatePage(events.toArray(new NamespaceEvent[events.size()]), last);
+        }
+    }
 
-            if(hashFlag) {
-                for(Path f : files)
-                {
-                    if(!f.isRoot())
-                    {
-                        if(filesPath.contains(f)||directoriesPath.contains(f))
-                        {
-                            toDelete.add(f);
-                        }
-                        else
-                        {
-
-                            Iterator<String> i = f.iterator();
-                            Path p=new Path();
-                            while(i.hasNext())
-                            {
-                                String n=i.next();
-                                if(i.hasNext())
-                                {
-                                    Path d=new Path(p,n);
-                                    p=d;
-                                    directoriesPath.add(d);
-//                                    pathLocks.put(d, new PathLock());
-                                }
-                            }
-                            filesPath.add(f);
-//                            pathLocks.put(f, new PathLock());
-                            pathToStorage.put(f,storageStubs);
-                        }
-                    }
-                }
+    @Override
+    public Events tail(long incarnation, long after, int limit, long timeout)
+    {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        checkIncarnation(incarnation);
+        try {
+            NamespaceEvent[] events = log.read(after, limit, timeout);
+            long next = events.length == 0 ? after : events[events.length - 1].sequence;
+            return new Events(events, next);
+        }
+        catch(InterruptedException e) {
+            // The server is stopping; the standby will notice on its next call
+            return new Events(new NamespaceEvent[0], after);
+        }
+    }
+
+    private void checkIncarnation(long expected)
+    {
+        if(expected != incarnation) {
+            throw new IllegalStateException("Naming server has been restarted");
+        }
+    }
+
+    /* Adds the events that recreate one entry of the tree, and its quota. */
+    private void stateHelper(Path path, PathTrie.Node node, ArrayList<NamespaceEvent> events)
+    {
+        if(node.directory) {
+            events.add(new NamespaceEvent(0, NamespaceEvent.Type.CREATE, path,
+                                          true, null, null));
+            addQuota(path, node, events);
+        }
+        else {
+            StorageStubs stubs = pathToStorage.get(path);
+            events.add(new NamespaceEvent(0, NamespaceEvent.Type.CREATE, path, false,
+                                          stubs == null ? null : stubs.storage,
+                                          stubs == null ? null : stubs.command));
+        }
+    }
+
+    private static void addQuota(Path path, PathTrie.Node node, ArrayList<NamespaceEvent> events)
+    {
+        if(node.fileQuota != Long.MAX_VALUE) {
+            events.add(new NamespaceEvent(0, NamespaceEvent.Type.QUOTA, path, true,
+                                          null, null, node.fileQuota));
+        }
+    }
+
+    /** Prepares a naming server that has not been started to receive a copy
+        of another naming server's state, taken with <code>state</code> after
+        that server's <code>lastSequence</code> returned the given number.
+        The pages are then applied with <code>load</code>, and the changes
+        after the number with <code>replicate</code>.
+
+        @throws IllegalStateException If the naming server is not empty.
+     */
+    void startLoad(long lastSequence)
+    {
+        synchronized(namespace) {
+            if(!namespace.root.isEmpty() || !storageServerStubsList.isEmpty()) {
+                throw new IllegalStateException("Naming server is not empty");
+            }
+            log.reset(lastSequence);
+        }
+    }
 
+    /** Applies one page returned by <code>state</code> on another naming
+        server.
+     */
+    void load(StatePage page)
+    {
+        synchronized(namespace) {
+            for(NamespaceEvent event: page.events) {
+                apply(event);
             }
+        }
+    }
 
-//            else {
-////                System.out.println("Added to delete: " + path.toString());
-//                toDelete.add(path);
-//            }
+    /** Applies changes returned by <code>tail</code> on another naming
+        server, and appends them to the log with their original sequence
+        numbers.
 
+        @throws IllegalStateException If the changes do not directly follow
+                                      the last change applied.
+     */
+    void replicate(NamespaceEvent[] events)
+    {
+        synchronized(namespace) {
+            for(NamespaceEvent event: events) {
+                log.replicate(event);
+                apply(event);
+            }
+        }
+    }
+
+    /* Applies a change made by another naming server. Called with the
+       namespace lock held.
+     */
+    private void apply(NamespaceEvent event)
+    {
+        switch(event.type) {
+        case REGISTER:
+            stubsFor(event.storage, event.command);
+            break;
+        case CREATE:
+            if(event.directory) {
+                namespace.add(event.path, true);
+            }
+            else if(namespace.addFile(event.path) && event.storage != null) {
+                StorageStubs stubs = stubsFor(event.storage, event.command);
+                pathToStorage.put(event.path, stubs);
+                placed(event.path, stubs);
+            }
+            break;
+        case DELETE:
+            PathTrie.Node removed = namespace.remove(event.path);
+            if(removed != null) {
+                ArrayList<Path> files = new ArrayList<Path>();
+                PathTrie.files(event.path, removed, files);
+                for(Path f: files) {
+                    pathToStorage.remove(f);
+                }
+            }
+            break;
+        case PLACEMENT:
+            // A placement logged just before a delete of the file is ignored
+            PathTrie.Node node = namespace.get(event.path);
+            if(node != null && !node.directory) {
+                StorageStubs stubs = stubsFor(event.storage, event.command);
+                pathToStorage.put(event.path, stubs);
+                placed(event.path, stubs);
+            }
+            break;
+        case QUOTA:
+            namespace.setFileQuota(event.path, event.quota);
+            break;
+        }
+    }
+
+    /* Returns the entry for a storage server, adding it if it is not known. */
+    private StorageStubs stubsFor(Storage storage, Command command)
+    {
+        synchronized(storageServerStubsList) {
+            for(StorageStubs stubs: storageServerStubsList) {
+                if(stubs.storage.equals(storage)) {
+                    return stubs;
+                }
+            }
+            StorageStubs stubs = new StorageStubs(storage, command);
+            storageServerStubsList.add(stubs);
+            return stubs;
         }
-        Path[] pathArray = toDelete.toArray(new Path[toDelete.size()]);
-        return pathArray;
     }
 }
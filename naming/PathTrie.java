@@ -0,0 +1,585 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+
+/** Directory tree of the filesystem, indexed by path component.
+
+    <p>
+    Every operation follows the components of a path down from the root, so
+    looking up a path, checking it for conflicts, or enumerating the tree
+    below it costs time in proportion to the depth of the path and the size
+    of the result, not to the number of paths in the filesystem.
+
+    <p>
+    Each directory also keeps the number of files and directories below it,
+    and the total size of those files, updated along the path whenever an
+    entry is added or removed or a file's size is set. Files also keep the
+    storage server that holds them, so that a snapshot tells where a file was
+    as well as that it existed.
+
+    <p>
+    A snapshot of any subtree can be taken in constant time. Nodes are shared
+    between the live tree and its snapshots. While any snapshot is held, an
+    update first records, beside the entry it changes, what the entry held
+    before, so a snapshot never sees a later change and an update costs the
+    same whether snapshots are held or not. Records are told apart by epoch:
+    taking a snapshot starts a new epoch, only the first change to an entry
+    in each epoch is recorded, and records that no held snapshot can see are
+    dropped when a snapshot is released. The counts and quotas of
+    directories are not kept for snapshots.
+
+    <p>
+    Lookups may run concurrently with each other and with updates. Updates
+    are serialized.
+ */
+class PathTrie
+{
+    /** Epoch to pass to the lookups of a node to see the live tree. */
+    static final long LIVE = Long.MAX_VALUE;
+
+    /** Entry in the tree. */
+    static class Node
+    {
+        final boolean directory;
+        // Entries of a directory by name, in sorted order; null for files.
+        // While snapshots are held, removed entries stay as empty slots.
+        private final ConcurrentSkipListMap<String, Slot> children;
+        // Number of files and directories below this one
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong directories = new AtomicLong();
+        // Size of a file, or of all the files below a directory, as last
+        // reported by their storage servers
+        final AtomicLong bytes = new AtomicLong();
+        // Maximum number of files below this directory
+        volatile long fileQuota = Long.MAX_VALUE;
+        // Storage server holding a file, as set by place; a file that moves
+        // gets a new node, so that snapshots keep the old location
+        final Object location;
+        // Names of the entries with recorded changes; only used by updates
+        private HashSet<String> changed;
+
+        Node(boolean directory) {
+            this(directory, null);
+        }
+
+        Node(boolean directory, Object location) {
+            this.directory = directory;
+            this.children = directory ? new ConcurrentSkipListMap<String, Slot>() : null;
+            this.location = location;
+        }
+
+        /** Returns the entry with the given name in the live tree, or
+            <code>null</code> if there is none.
+         */
+        Node child(String name)
+        {
+            return child(name, LIVE);
+        }
+
+        /** Returns the entry with the given name as it was at the given
+            epoch, or <code>null</code> if there was none.
+         */
+        Node child(String name, long at)
+        {
+            if(children == null) {
+                return null;
+            }
+            Slot slot = children.get(name);
+            return slot == null ? null : slot.at(at);
+        }
+
+        /** Returns the entries of a directory as they were at the given
+            epoch, in sorted order. The entries are looked up as the
+            iteration reaches them.
+
+            @param from Name to start from, or <code>null</code> to start from
+                        the first entry.
+            @param inclusive Whether an entry named <code>from</code> is
+                             included.
+            @param at Epoch to look at, or <code>LIVE</code>.
+         */
+        Iterable<Map.Entry<String, Node>> children(String from, boolean inclusive, long at)
+        {
+            final Map<String, Slot> slots = from == null ? children
+                                                         : children.tailMap(from, inclusive);
+            return () -> new Iterator<Map.Entry<String, Node>>() {
+                private final Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+                private Map.Entry<String, Node> next = advance();
+
+                private Map.Entry<String, Node> advance()
+                {
+                    while(it.hasNext()) {
+                        Map.Entry<String, Slot> entry = it.next();
+                        Node node = entry.getValue().at(at);
+                        if(node != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, Node>(
+                                entry.getKey(), node);
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext()
+                {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, Node> next()
+                {
+                    if(next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, Node> result = next;
+                    next = advance();
+                    return result;
+                }
+            };
+        }
+
+        /** Returns the names of the entries of a directory as they were at
+            the given epoch, in sorted order.
+         */
+        String[] names(long at)
+        {
+            ArrayList<String> names = new ArrayList<String>();
+            for(Map.Entry<String, Node> entry: children(null, false, at)) {
+                names.add(entry.getKey());
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        /** Returns <code>true</code> if the live directory has no entries. */
+        boolean isEmpty()
+        {
+            return !children(null, false, LIVE).iterator().hasNext();
+        }
+    }
+
+    /* Place of one name in a directory. */
+    private static class Slot
+    {
+        volatile Node live;
+        // Values held before changes made while snapshots were held, oldest
+        // first; null if there are none. Replaced, never changed, so readers
+        // need no lock.
+        volatile Change[] history;
+
+        /* Written before the live value, and read after it, so a reader
+           that missed a change always finds its record.
+         */
+        Node at(long at)
+        {
+            Node current = live;
+            Change[] changes = history;
+            if(at != LIVE && changes != null) {
+                for(Change change: changes) {
+                    if(change.epoch > at) {
+                        return change.old;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    /* Value of a slot before the first change to it in an epoch. */
+    private static class Change
+    {
+        final long epoch;
+        final Node old;
+
+        Change(long epoch, Node old) {
+            this.epoch = epoch;
+            this.old = old;
+        }
+    }
+
+    /* Subtree frozen by a snapshot. */
+    private static class Snapshot
+    {
+        final Path path;
+        final Node node;
+        // Epoch the snapshot sees; changes of later epochs are hidden
+        final long at;
+
+        Snapshot(Path path, Node node, long at) {
+            this.path = path;
+            this.node = node;
+            this.at = at;
+        }
+    }
+
+    final Node root = new Node(true);
+    // Epoch of the changes made now
+    private long epoch = 0;
+    private final ConcurrentHashMap<Long, Snapshot> snapshots =
+        new ConcurrentHashMap<Long, Snapshot>();
+    private long nextSnapshot = 1;
+    // Directories with recorded changes
+    private final HashSet<Node> changedDirectories = new HashSet<Node>();
+
+    /** Returns the entry for a path, or <code>null</code> if there is none. */
+    Node get(Path path)
+    {
+        return get(root, path, 0, LIVE);
+    }
+
+    /** Returns the entry for a path in a snapshot, or <code>null</code> if
+        the snapshot did not contain it.
+
+        @throws IllegalArgumentException If the snapshot is not held.
+     */
+    Node get(long snapshot, Path path)
+    {
+        Snapshot frozenTree = held(snapshot);
+        if(!path.isSubpath(frozenTree.path)) {
+            return null;
+        }
+        return get(frozenTree.node, path, frozenTree.path.components.size(), frozenTree.at);
+    }
+
+    /** Returns the epoch to pass to the lookups of the nodes of a snapshot.
+
+        @throws IllegalArgumentException If the snapshot is not held.
+     */
+    long epochOf(long snapshot)
+    {
+        return held(snapshot).at;
+    }
+
+    private Snapshot held(long snapshot)
+    {
+        Snapshot frozenTree = snapshots.get(snapshot);
+        if(frozenTree == null) {
+            throw new IllegalArgumentException("No such snapshot");
+        }
+        return frozenTree;
+    }
+
+    /** Takes a snapshot of the tree below a path, in constant time.
+
+        @return The identifier of the snapshot, or -1 if the path does not
+                exist.
+     */
+    synchronized long snapshot(Path path)
+    {
+        Node node = get(path);
+        if(node == null) {
+            return -1;
+        }
+        long id = nextSnapshot++;
+        snapshots.put(id, new Snapshot(path, node, epoch));
+        epoch++;
+        return id;
+    }
+
+    /** Releases a snapshot, and drops the records of changes that no
+        remaining snapshot can see.
+
+        @return <code>true</code> if the snapshot was held.
+     */
+    synchronized boolean release(long snapshot)
+    {
+        if(snapshots.remove(snapshot) == null) {
+            return false;
+        }
+        long oldest = LIVE;
+        for(Snapshot held: snapshots.values()) {
+            oldest = Math.min(oldest, held.at);
+        }
+        Iterator<Node> directories = changedDirectories.iterator();
+        while(directories.hasNext()) {
+            Node directory = directories.next();
+            Iterator<String> names = directory.changed.iterator();
+            while(names.hasNext()) {
+                String name = names.next();
+                Slot slot = directory.children.get(name);
+                ArrayList<Change> kept = new ArrayList<Change>();
+                for(Change change: slot.history) {
+                    if(change.epoch > oldest) {
+                        kept.add(change);
+                    }
+                }
+                if(!kept.isEmpty()) {
+                    slot.history = kept.toArray(new Change[kept.size()]);
+                    continue;
+                }
+                slot.history = null;
+                names.remove();
+                if(slot.live == null) {
+                    directory.children.remove(name, slot);
+                }
+            }
+            if(directory.changed.isEmpty()) {
+                directory.changed = null;
+                directories.remove();
+            }
+        }
+        return true;
+    }
+
+    /** Sets the maximum number of files below a directory.
+
+        @return <code>false</code> if the path is not a directory.
+     */
+    synchronized boolean setFileQuota(Path directory, long maxFiles)
+    {
+        Node node = get(directory);
+        if(node == null || !node.directory) {
+            return false;
+        }
+        node.fileQuota = maxFiles;
+        return true;
+    }
+
+    /* Follows the components of path from the given depth down from node, as
+       the tree was at the given epoch.
+     */
+    private static Node get(Node node, Path path, int depth, long at)
+    {
+        for(String component: path.components.subList(depth, path.components.size())) {
+            node = node.child(component, at);
+            if(node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /** Adds an entry to an existing directory.
+
+        @return <code>true</code> if the entry was added, <code>false</code> if
+                the path already exists or its parent is not a directory.
+        @throws IllegalStateException If the entry is a file and a directory
+                                      above it has reached its file quota.
+     */
+    synchronized boolean add(Path path, boolean directory)
+    {
+        if(path.isRoot()) {
+            return false;
+        }
+        if(!directory) {
+            checkQuota(path);
+        }
+        Node[] nodes = nodes(path, path.components.size() - 1);
+        if(nodes == null || nodes[nodes.length - 1].child(path.last()) != null) {
+            return false;
+        }
+        set(nodes[nodes.length - 1], path.last(), new Node(directory));
+        count(nodes, directory ? 0 : 1, directory ? 1 : 0, 0);
+        return true;
+    }
+
+    /** Adds a file, creating any missing directories above it.
+
+        @return <code>true</code> if the file was added, <code>false</code> if
+                the path already exists or a file lies on the way to it.
+     */
+    synchronized boolean addFile(Path path)
+    {
+        if(path.isRoot()) {
+            return false;
+        }
+        // Check the whole path before creating anything
+        int depth = path.components.size();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nodes.add(root);
+        while(nodes.size() <= depth) {
+            Node next = nodes.get(nodes.size() - 1).child(path.components.get(nodes.size() - 1));
+            if(next == null) {
+                break;
+            }
+            if(!next.directory) {
+                return false;
+            }
+            nodes.add(next);
+        }
+        if(nodes.size() > depth) {
+            return false;
+        }
+
+        for(int i=nodes.size()-1; i<depth-1; i++) {
+            Node created = new Node(true);
+            set(nodes.get(i), path.components.get(i), created);
+            count(nodes, 0, 1, 0);
+            nodes.add(created);
+        }
+        set(nodes.get(depth - 1), path.last(), new Node(false));
+        count(nodes, 1, 0, 0);
+        return true;
+    }
+
+    /** Removes an entry and everything below it.
+
+        @return The removed entry, or <code>null</code> if the path does not
+                exist or is the root.
+     */
+    synchronized Node remove(Path path)
+    {
+        if(path.isRoot()) {
+            return null;
+        }
+        Node[] nodes = nodes(path, path.components.size() - 1);
+        if(nodes == null) {
+            return null;
+        }
+        Node removed = nodes[nodes.length - 1].child(path.last());
+        if(removed == null) {
+            return null;
+        }
+        set(nodes[nodes.length - 1], path.last(), null);
+        count(nodes, -(removed.files.get() + (removed.directory ? 0 : 1)),
+              -(removed.directories.get() + (removed.directory ? 1 : 0)),
+              -removed.bytes.get());
+        return removed;
+    }
+
+    /** Sets the size of a file, and adjusts the totals of the directories
+        above it.
+
+        @return <code>false</code> if the path is not a file.
+     */
+    synchronized boolean setBytes(Path file, long bytes)
+    {
+        if(file.isRoot()) {
+            return false;
+        }
+        Node[] nodes = nodes(file, file.components.size() - 1);
+        Node node = nodes == null ? null : nodes[nodes.length - 1].child(file.last());
+        if(node == null || node.directory) {
+            return false;
+        }
+        long delta = bytes - node.bytes.getAndSet(bytes);
+        count(nodes, 0, 0, delta);
+        return true;
+    }
+
+    /** Sets the storage server holding a file. The file keeps its size.
+
+        @return <code>false</code> if the path is not a file.
+     */
+    synchronized boolean place(Path file, Object location)
+    {
+        if(file.isRoot()) {
+            return false;
+        }
+        Node[] nodes = nodes(file, file.components.size() - 1);
+        Node node = nodes == null ? null : nodes[nodes.length - 1].child(file.last());
+        if(node == null || node.directory) {
+            return false;
+        }
+        if(node.location != location) {
+            Node moved = new Node(false, location);
+            moved.bytes.set(node.bytes.get());
+            set(nodes[nodes.length - 1], file.last(), moved);
+        }
+        return true;
+    }
+
+    /** Adds the paths of all files at or below an entry to a list. */
+    static void files(Path path, Node node, List<Path> out)
+    {
+        if(!node.directory) {
+            out.add(path);
+            return;
+        }
+        for(Map.Entry<String, Node> child: node.children(null, false, LIVE)) {
+            files(new Path(path, child.getKey()), child.getValue(), out);
+        }
+    }
+
+    /* Throws if any directory above the path has no room for another file. */
+    private void checkQuota(Path path)
+    {
+        Path ancestor = new Path();
+        Node node = root;
+        for(String component: path.components) {
+            if(node == null || !node.directory) {
+                return;
+            }
+            if(node.files.get() >= node.fileQuota) {
+                throw new IllegalStateException("File quota exceeded for " + ancestor);
+            }
+            node = node.child(component);
+            ancestor = new Path(ancestor, component);
+        }
+    }
+
+    /* Returns the directories of the live tree from the root down to the
+       given depth of path, or null if a node on the way is missing or a
+       file.
+     */
+    private Node[] nodes(Path path, int depth)
+    {
+        Node[] nodes = new Node[depth + 1];
+        nodes[0] = root;
+        for(int i=0; i<depth; i++) {
+            nodes[i + 1] = nodes[i].child(path.components.get(i));
+            if(nodes[i + 1] == null || !nodes[i + 1].directory) {
+                return null;
+            }
+        }
+        return nodes;
+    }
+
+    /* Changes one entry of a live directory, first recording what it held if
+       a snapshot may still see it.
+     */
+    private void set(Node directory, String name, Node value)
+    {
+        Slot slot = directory.children.get(name);
+        boolean added = slot == null;
+        if(added) {
+            if(value == null) {
+                return;
+            }
+            slot = new Slot();
+        }
+        if(!snapshots.isEmpty()) {
+            Change[] history = slot.history;
+            if(history == null || history[history.length - 1].epoch != epoch) {
+                int n = history == null ? 0 : history.length;
+                Change[] recorded = history == null ? new Change[1]
+                                                    : Arrays.copyOf(history, n + 1);
+                recorded[n] = new Change(epoch, slot.live);
+                slot.history = recorded;
+                if(directory.changed == null) {
+                    directory.changed = new HashSet<String>();
+                    changedDirectories.add(directory);
+                }
+                directory.changed.add(name);
+            }
+        }
+        slot.live = value;
+        if(added) {
+            directory.children.put(name, slot);
+        }
+        else if(value == null && slot.history == null) {
+            directory.children.remove(name, slot);
+        }
+    }
+
+    /* Adjusts the counts of the given directories, which lie above the entry
+       being added, removed or resized.
+     */
+    private static void count(Node[] nodes, long files, long directories, long bytes)
+    {
+        count(Arrays.asList(nodes), files, directories, bytes);
+    }
+
+    private static void count(List<Node> nodes, long files, long directories, long bytes)
+    {
+        for(Node node: nodes) {
+            node.files.addAndGet(files);
+            node.directories.addAndGet(directories);
+            node.bytes.addAndGet(bytes);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package naming;
+
+import common.*;
+import rmi.*;
+
+/** Naming server replication interface.
+
+    <p>
+    A standby naming server uses this interface to keep a copy of the
+    primary's directory tree, file placement and file quotas. It first notes
+    the primary's incarnation with <code>incarnation</code> and the sequence
+    number of the latest change with <code>lastSequence</code>, then copies
+    the whole state one page at a time with <code>state</code>, and then
+    follows the primary's changes with <code>tail</code>, starting from the
+    noted sequence number.
+
+    <p>
+    Each page is consistent in itself, but changes may be made between
+    pages, so the copy as a whole reflects no single moment. Replaying every
+    change made after the noted sequence number brings it up to date,
+    because applying a change that a page already reflects has no further
+    effect.
+
+    <p>
+    Sequence numbers only order the changes of one incarnation: a primary
+    that is restarted numbers its changes from one again. Every call that
+    depends on earlier ones therefore names the incarnation the standby
+    copied, and fails once the primary is a different one. The standby then
+    takes a new copy.
+ */
+public interface Replication
+{
+    /** Returns a number that identifies this run of the naming server. It is
+        chosen at random when the naming server is created, so a restarted
+        naming server has a different one.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long incarnation() throws RMIException;
+
+    /** Returns the sequence number of the latest change, or zero if nothing
+        has changed.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long lastSequence() throws RMIException;
+
+    /** Returns one page of the state of the naming server, as events.
+
+        <p>
+        The entries of the directory tree are returned in <code>Path</code>
+        order, each directory before its contents and followed by its quota
+        if it has one. The first page also lists the registered storage
+        servers. Applying the pages in order to an empty naming server
+        reproduces the state.
+
+        @param incarnation The value of <code>incarnation</code> noted before
+                           the first page.
+        @param startAfter The <code>last</code> field of the previous page, or
+                          <code>null</code> for the first page.
+        @param limit Maximum number of entries of the tree in the page.
+        @return The page.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+        @throws IllegalStateException If the naming server is no longer the
+                                      given incarnation. The caller must take
+                                      a new copy.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    NamingServer.StatePage state(long incarnation, Path startAfter, int limit)
+        throws RMIException;
+
+    /** Returns the changes made after a given sequence number.
+
+        @param incarnation The value of <code>incarnation</code> noted before
+                           the copy was taken.
+        @param after Sequence number of the last change already applied.
+        @param limit Maximum number of changes to return.
+        @param timeout Time to wait for a change, in milliseconds, if there is
+                       none yet.
+        @return The changes, oldest first, and the sequence number to pass to
+                the next call.
+        @throws IllegalStateException If changes after <code>after</code> are
+                                      no longer retained, or if the naming
+                                      server is no longer the given
+                                      incarnation. The caller must take a new
+                                      copy with <code>state</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    NamingServer.Events tail(long incarnation, long after, int limit, long timeout)
+        throws RMIException;
+}
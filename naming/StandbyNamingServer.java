@@ -0,0 +1,227 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import rmi.*;
+
+/** Standby naming server.
+
+    <p>
+    A standby keeps a warm copy of a primary naming server's directory tree,
+    file placement and list of storage servers. It takes a copy of the whole
+    state through the primary's <code>Replication</code> interface, and then
+    follows the primary's changes as they are made, applying each to its own
+    copy.
+
+    <p>
+    When a call to the primary fails, the standby checks whether the
+    well-known naming server ports have been released. If so, the primary is
+    gone, and the standby starts its copy on those ports. Storage servers do
+    not need to register again, and clients reconnect to the same address.
+    While the primary still holds the ports, failures are treated as
+    transient and the standby keeps retrying. The standby must therefore run
+    on the same host as the primary.
+
+    <p>
+    File quotas are copied along with the tree. Snapshots of the tree are
+    not.
+ */
+public class StandbyNamingServer
+{
+    /** Time each call to the primary waits for new changes, in milliseconds. */
+    public static final long TAIL_TIMEOUT = 250;
+    /** Maximum number of changes fetched per call. */
+    public static final int TAIL_BATCH = 1024;
+    /** Maximum number of entries of the tree fetched per call while taking a
+        copy.
+     */
+    public static final int STATE_BATCH = 1024;
+    /** Pause between attempts to reach the primary, in milliseconds. */
+    public static final long RETRY_INTERVAL = 100;
+
+    private final Replication primary;
+    // Copy of the primary's state; replaced whenever a new copy is taken
+    private volatile NamingServer replica;
+    private volatile boolean promoted = false;
+    private Thread follower;
+
+    /** Creates a standby for the naming server on the given host.
+
+        <p>
+        The standby is not started.
+
+        @param primaryHostname Host running the primary naming server.
+        @throws NullPointerException If <code>primaryHostname</code> is
+                                     <code>null</code>.
+     */
+    public StandbyNamingServer(String primaryHostname)
+    {
+        if(primaryHostname == null) {
+            throw new NullPointerException("Hostname cannot be null");
+        }
+        primary = Stub.create(Replication.class,
+                new InetSocketAddress(primaryHostname, NamingServer.REPLICATION_PORT));
+    }
+
+    /** Starts following the primary.
+
+        @throws IllegalStateException If the standby has already been started.
+     */
+    public synchronized void start()
+    {
+        if(follower != null) {
+            throw new IllegalStateException("Standby already started");
+        }
+        follower = new Thread(this::follow, "Standby naming server");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /** Stops the standby. If it has taken over, the naming server it started
+        is stopped as well.
+     */
+    public synchronized void stop()
+    {
+        if(follower != null) {
+            follower.interrupt();
+        }
+        NamingServer server = replica;
+        if(promoted && server != null) {
+            server.stop();
+        }
+        stopped(null);
+    }
+
+    /** Returns <code>true</code> if the standby has taken over from the
+        primary.
+     */
+    public boolean isPromoted()
+    {
+        return promoted;
+    }
+
+    /** Returns the sequence number of the last change applied, or
+        <code>-1</code> if no copy has been taken yet. Sequence numbers start
+        again when a new copy is taken from a restarted primary.
+     */
+    public long appliedSequence()
+    {
+        NamingServer server = replica;
+        return server == null ? -1 : server.lastSequence();
+    }
+
+    /** Indicates that the standby has taken over from the primary.
+
+        <p>
+        This method should be overridden for logging purposes. The default
+        implementation does nothing.
+
+        @param server The naming server now running on the well-known ports.
+     */
+    protected void promoted(NamingServer server)
+    {
+    }
+
+    /** Indicates that the standby has stopped following the primary.
+
+        <p>
+        The default implementation does nothing.
+
+        @param cause The cause for the shutdown, or <code>null</code> if the
+                     shutdown was by explicit user request or the standby
+                     took over.
+     */
+    protected void stopped(Throwable cause)
+    {
+    }
+
+    /* Body of the follower thread. */
+    private void follow()
+    {
+        long cursor = 0;
+        // Run of the primary the copy was taken from
+        long incarnation = 0;
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                if(replica == null) {
+                    NamingServer fresh = new NamingServer();
+                    incarnation = primary.incarnation();
+                    // Changes made while the pages are copied are replayed
+                    // from here
+                    long fence = primary.lastSequence();
+                    fresh.startLoad(fence);
+                    Path last = null;
+                    do {
+                        NamingServer.StatePage page =
+                            primary.state(incarnation, last, STATE_BATCH);
+                        fresh.load(page);
+                        last = page.last;
+                    } while(last != null);
+                    replica = fresh;
+                    cursor = fence;
+                }
+                NamingServer.Events batch =
+                    primary.tail(incarnation, cursor, TAIL_BATCH, TAIL_TIMEOUT);
+                replica.replicate(batch.events);
+                cursor = batch.next;
+            }
+            catch(IllegalStateException e) {
+                // Fell behind the primary's log, or the primary was
+                // restarted; take a new copy
+                replica = null;
+            }
+            catch(RMIException e) {
+                if(replica != null && takeOver()) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                }
+                catch(InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Starts the copy on the well-known ports if the primary has released
+       them. Returns true if the standby took over.
+     */
+    private synchronized boolean takeOver()
+    {
+        if(Thread.currentThread().isInterrupted() || !portsFree()) {
+            return false;
+        }
+        try {
+            replica.start();
+        }
+        catch(RMIException e) {
+            // Another process took the ports in the meantime
+            e.printStackTrace();
+            stopped(e);
+            return true;
+        }
+        promoted = true;
+        promoted(replica);
+        stopped(null);
+        return true;
+    }
+
+    private static boolean portsFree()
+    {
+        int[] ports = {NamingStubs.SERVICE_PORT, NamingStubs.REGISTRATION_PORT,
+                       NamingServer.REPLICATION_PORT};
+        for(int port: ports) {
+            try {
+                // Bound, so nothing else is listening on the port
+                new ServerSocket(port).close();
+            }
+            catch(IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,465 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+import common.*;
+
+/** CRC32C checksums of the fixed-size blocks of a storage server's files.
+
+    <p>
+    Checksums are kept beside the data, keyed by path. Every write computes
+    the new checksums of the blocks it touches before the data reaches the
+    disk, so corruption that happens after the write is caught by the next
+    read or scrub. Blocks the write only partly covers are completed with
+    their current contents. Appends instead continue a running checksum of
+    the last block, so a stream of small appends never reads the file back.
+
+    <p>
+    The checksums of each file are saved in a sidecar file, in a directory
+    given by the storage server, when the server is done with the file for
+    a while: when its handle is closed, or when the scrubber has checked it.
+    The data is synced first, and the sidecar is removed before the first
+    change to the file's checksums, so a sidecar on disk never disagrees
+    with the data it describes. Checksums are loaded from the sidecar when
+    the file is next used, also after a restart, and only the files in use
+    keep theirs in memory.
+
+    <p>
+    Blocks with no recorded checksum, such as those of files that were
+    placed in the storage directory by hand, or that were still being
+    written when the server stopped abnormally, have their checksum recorded
+    the first time they are read or scrubbed. Every later read of the block
+    is verified against it.
+
+    <p>
+    Objects of this class are not thread-safe. The storage server only uses
+    them while holding its own lock.
+ */
+class BlockChecksums
+{
+    /** Size of a checksummed block, in bytes. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static class FileChecksums
+    {
+        // Whether the sidecar on disk holds these checksums, and whether
+        // they hold more than the sidecar
+        boolean saved = false;
+        boolean dirty = false;
+        // Whether blocks were written since the data was last synced
+        boolean unsynced = false;
+        // File length the checksums were recorded against
+        long length = 0;
+        int[] crcs = new int[0];
+        // Blocks whose entry in crcs is current
+        BitSet known = new BitSet();
+        // Running checksum of the last block while it is partly filled, or
+        // null if not known
+        CRC32C tail = null;
+        long tailBlock = -1;
+    }
+
+    private final File directory;
+    private final HashMap<Path, FileChecksums> files = new HashMap<Path, FileChecksums>();
+
+    /** Creates an empty set of checksums.
+
+        @param directory Directory for the sidecar files. It is created when
+                         the first sidecar is saved.
+     */
+    BlockChecksums(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /** Reads a range of a file, verifying every block the range touches.
+
+        @param file Path to the file.
+        @param open Open handle for the file.
+        @param offset Offset of the first byte to read.
+        @param length Number of bytes to read.
+        @return The bytes read.
+        @throws CorruptBlockException If a block does not match its checksum.
+        @throws IOException If the file cannot be read.
+     */
+    byte[] read(Path file, OpenFile open, long offset, int length) throws IOException
+    {
+        long fileLength = open.length();
+        FileChecksums sums = checksums(file, fileLength);
+        if(length == 0) {
+            return new byte[0];
+        }
+        // Verification needs whole blocks, so read the blocks around the range
+        long first = offset / BLOCK_SIZE;
+        long last = (offset + length - 1) / BLOCK_SIZE;
+        long start = first * BLOCK_SIZE;
+        long end = Math.min(fileLength, (last + 1) * BLOCK_SIZE);
+        byte[] blocks = new byte[(int) (end - start)];
+        open.read(start, blocks);
+        for(long b = first; b <= last; b++) {
+            int from = (int) ((b - first) * BLOCK_SIZE);
+            int to = Math.min(blocks.length, from + BLOCK_SIZE);
+            check(file, sums, (int) b, crc(blocks, from, to - from));
+        }
+        int skip = (int) (offset - start);
+        return Arrays.copyOfRange(blocks, skip, skip + length);
+    }
+
+    /** Verifies a single block of a file.
+
+        @return The number of bytes verified, or zero if the block lies past
+                the end of the file.
+        @throws CorruptBlockException If the block does not match its
+                                      checksum.
+        @throws IOException If the file cannot be read.
+     */
+    int scrub(Path file, OpenFile open, long block) throws IOException
+    {
+        long fileLength = open.length();
+        FileChecksums sums = checksums(file, fileLength);
+        long start = block * BLOCK_SIZE;
+        if(start >= fileLength) {
+            return 0;
+        }
+        byte[] data = new byte[(int) Math.min(BLOCK_SIZE, fileLength - start)];
+        open.read(start, data);
+        check(file, sums, (int) block, crc(data, 0, data.length));
+        return data.length;
+    }
+
+    /** Records the checksums of the blocks a write is about to change.
+
+        <p>
+        Must be called before the data is handed to the file. If the write
+        then fails, the caller must call <code>forget</code> for the same
+        range.
+
+        @param file Path to the file.
+        @param open Open handle for the file.
+        @param offset Offset the data will be written at.
+        @param data The data to be written.
+        @throws CorruptBlockException If the current contents of a block the
+                                      write only partly covers do not match
+                                      their checksum.
+        @throws IOException If the file cannot be read.
+     */
+    void write(Path file, OpenFile open, long offset, byte[] data) throws IOException
+    {
+        long oldLength = open.length();
+        FileChecksums sums = checksums(file, oldLength);
+        if(data.length == 0) {
+            return;
+        }
+        invalidate(file, sums);
+        sums.unsynced = true;
+        long end = offset + data.length;
+        long newLength = Math.max(oldLength, end);
+        // A write past the end also changes the old last block and any gap
+        long first = Math.min(offset, oldLength) / BLOCK_SIZE;
+        long last = (end - 1) / BLOCK_SIZE;
+        for(long b = first; b <= last; b++) {
+            long start = b * BLOCK_SIZE;
+            int size = (int) Math.min(BLOCK_SIZE, newLength - start);
+            long from = Math.max(offset, start);
+            long to = Math.min(end, start + size);
+            CRC32C crc;
+            if(sums.tail != null && sums.tailBlock == b && offset >= oldLength) {
+                // Extends the last block: add the gap, if any, and the data
+                crc = sums.tail;
+                crc.update(new byte[(int) (Math.min(offset, start + size) - oldLength)]);
+                if(to > from) {
+                    crc.update(data, (int) (from - offset), (int) (to - from));
+                }
+            }
+            else {
+                byte[] block = new byte[size];
+                int oldSize = (int) Math.max(0, Math.min(size, oldLength - start));
+                boolean covered = offset <= start && end >= start + size;
+                if(oldSize > 0 && !covered) {
+                    byte[] old = new byte[oldSize];
+                    open.read(start, old);
+                    if(sums.known.get((int) b) && sums.crcs[(int) b] != crc(old, 0, oldSize)) {
+                        throw new CorruptBlockException(file, b);
+                    }
+                    System.arraycopy(old, 0, block, 0, oldSize);
+                }
+                if(to > from) {
+                    System.arraycopy(data, (int) (from - offset), block, (int) (from - start),
+                                     (int) (to - from));
+                }
+                crc = new CRC32C();
+                crc.update(block, 0, size);
+            }
+            record(sums, (int) b, (int) crc.getValue());
+            if(size < BLOCK_SIZE) {
+                sums.tail = crc;
+                sums.tailBlock = b;
+            }
+            else if(sums.tailBlock == b) {
+                sums.tail = null;
+            }
+        }
+        sums.length = newLength;
+    }
+
+    /** Forgets the checksums of the blocks in a range, after a write to it
+        failed and left its contents unknown.
+     */
+    void forget(Path file, long offset, int length)
+    {
+        FileChecksums sums = files.get(file);
+        if(sums == null) {
+            return;
+        }
+        invalidate(file, sums);
+        long from = Math.min(offset, sums.length) / BLOCK_SIZE;
+        long to = (offset + length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        sums.known.clear((int) from, (int) Math.max(from, to));
+        sums.tail = null;
+    }
+
+    /** Sets the checksums of a whole file whose contents were just replaced
+        with data of known checksums, such as a file expanded from its
+        compressed form or copied from another storage server. The new
+        contents must already be synced to the disk.
+
+        @param file Path to the file.
+        @param length Length of the file.
+        @param crcs Checksum of every block of the file, in order.
+     */
+    void install(Path file, long length, int[] crcs)
+    {
+        remove(file);
+        FileChecksums sums = new FileChecksums();
+        sums.length = length;
+        sums.crcs = crcs.clone();
+        sums.known.set(0, crcs.length);
+        sums.dirty = true;
+        files.put(file, sums);
+    }
+
+    /** Saves the checksums of a file to its sidecar, if they changed, and
+        drops them from memory. They are loaded again when the file is next
+        used.
+
+        @param file Path to the file.
+        @param open Open handle for the file, which is synced first if blocks
+                    were written since the data was last synced, or
+                    <code>null</code> if the server holds no handle for it.
+                    Without a handle, checksums of written blocks are kept in
+                    memory rather than saved.
+        @throws IOException If the data cannot be synced or the sidecar
+                            cannot be written. The checksums are then kept
+                            in memory.
+     */
+    void save(Path file, OpenFile open) throws IOException
+    {
+        FileChecksums sums = files.get(file);
+        if(sums == null) {
+            return;
+        }
+        if(sums.dirty) {
+            if(sums.unsynced) {
+                if(open == null) {
+                    return;
+                }
+                open.sync();
+                sums.unsynced = false;
+            }
+            File sidecar = sidecar(file);
+            sidecar.getParentFile().mkdirs();
+            File partial = new File(sidecar.getPath() + StorageServer.MIGRATING_SUFFIX);
+            try(FileOutputStream out = new FileOutputStream(partial)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                long[] known = sums.known.toLongArray();
+                data.writeLong(sums.length);
+                data.writeInt(known.length);
+                for(long word: known) {
+                    data.writeLong(word);
+                }
+                int count = sums.known.length();
+                data.writeInt(count);
+                for(int b=0; b<count; b++) {
+                    data.writeInt(sums.crcs[b]);
+                }
+                data.flush();
+                out.getFD().sync();
+            }
+            if(!partial.renameTo(sidecar)) {
+                partial.delete();
+                throw new IOException("Checksums of " + file + " cannot be saved");
+            }
+        }
+        files.remove(file);
+    }
+
+    /** Saves the checksums of every file the server holds no handle for.
+        Checksums that cannot be saved are recorded again as blocks are read.
+     */
+    void saveAll()
+    {
+        for(Path file: new ArrayList<Path>(files.keySet())) {
+            try {
+                save(file, null);
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Drops the checksums of the given path and everything below it, and
+        removes their sidecars.
+     */
+    void remove(Path path)
+    {
+        Iterator<Path> it = files.keySet().iterator();
+        while(it.hasNext()) {
+            if(it.next().isSubpath(path)) {
+                it.remove();
+            }
+        }
+        File sidecar = sidecar(path);
+        if(sidecar.isDirectory()) {
+            deleteRecursive(sidecar);
+        }
+        else {
+            sidecar.delete();
+        }
+    }
+
+    /** Removes the sidecars of files that no longer exist.
+
+        @param exists Tells whether the file at a path exists.
+     */
+    void removeStale(Predicate<Path> exists)
+    {
+        if(!directory.isDirectory()) {
+            return;
+        }
+        try {
+            for(Path file: Path.list(directory)) {
+                if(!exists.test(file)) {
+                    file.toFile(directory).delete();
+                }
+            }
+        }
+        catch(FileNotFoundException e) {
+            // Nothing to remove
+        }
+    }
+
+    private FileChecksums checksums(Path file, long fileLength)
+    {
+        FileChecksums sums = files.get(file);
+        if(sums == null) {
+            sums = load(file, fileLength);
+            files.put(file, sums);
+        }
+        else if(sums.length != fileLength) {
+            // Changed behind our back; the blocks from the old end are stale
+            invalidate(file, sums);
+            long from = Math.min(sums.length, fileLength) / BLOCK_SIZE;
+            sums.known.clear((int) from, Math.max((int) from, sums.known.length()));
+            sums.tail = null;
+            sums.length = fileLength;
+        }
+        return sums;
+    }
+
+    /* Reads the checksums of a file from its sidecar. A sidecar recorded
+       against another length is out of date, and is removed.
+     */
+    private FileChecksums load(Path file, long fileLength)
+    {
+        FileChecksums sums = new FileChecksums();
+        sums.length = fileLength;
+        File sidecar = sidecar(file);
+        if(!sidecar.isFile()) {
+            return sums;
+        }
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if(in.readLong() == fileLength) {
+                long[] known = new long[in.readInt()];
+                for(int i=0; i<known.length; i++) {
+                    known[i] = in.readLong();
+                }
+                int[] crcs = new int[in.readInt()];
+                for(int b=0; b<crcs.length; b++) {
+                    crcs[b] = in.readInt();
+                }
+                sums.known = BitSet.valueOf(known);
+                sums.crcs = crcs;
+                sums.saved = true;
+                return sums;
+            }
+        }
+        catch(IOException e) {
+            // Damaged; the checksums are recorded again as blocks are read
+        }
+        sidecar.delete();
+        return sums;
+    }
+
+    /* Removes the sidecar of a file before its checksums change, so that it
+       never disagrees with the data.
+     */
+    private void invalidate(Path file, FileChecksums sums)
+    {
+        if(sums.saved) {
+            sidecar(file).delete();
+            sums.saved = false;
+        }
+        sums.dirty = true;
+    }
+
+    private File sidecar(Path file)
+    {
+        return file.toFile(directory);
+    }
+
+    private static void deleteRecursive(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void check(Path file, FileChecksums sums, int block, int crc)
+        throws CorruptBlockException
+    {
+        if(sums.known.get(block)) {
+            if(sums.crcs[block] != crc) {
+                throw new CorruptBlockException(file, block);
+            }
+            return;
+        }
+        // Adds to what the sidecar holds without contradicting it
+        sums.dirty = true;
+        record(sums, block, crc);
+    }
+
+    private static void record(FileChecksums sums, int block, int crc)
+    {
+        if(block >= sums.crcs.length) {
+            sums.crcs = Arrays.copyOf(sums.crcs, Math.max(block + 1, sums.crcs.length * 2));
+        }
+        sums.crcs[block] = crc;
+        sums.known.set(block);
+    }
+
+    private static int crc(byte[] data, int offset, int length)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
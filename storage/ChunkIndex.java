@@ -0,0 +1,127 @@
+package storage;
+
+import java.util.*;
+
+import common.*;
+
+/** Chunks of the files of a storage server, by content hash.
+
+    <p>
+    The index lets a copy take the chunks this server already holds from its
+    own disk instead of the network. It is filled as chunks become known
+    without extra reads: when the server splits a file for another server
+    copying it, and when it copies a file in. Both maps are bounded, least
+    recently used entries going first, so the index costs a fixed amount of
+    memory whatever the number of files. Entries are not removed when files
+    change: a location found here may be stale, and is checked against the
+    hash before its data is used.
+
+    <p>
+    Objects of this class are not thread-safe. The storage server only uses
+    them with its lock held.
+ */
+class ChunkIndex
+{
+    /** Largest number of files whose chunk lists are kept. */
+    static final int MAX_FILES = 1024;
+    /** Largest number of chunks indexed, about 16 GB of data. */
+    static final int MAX_CHUNKS = 256 * 1024;
+
+    /** Where the data of a chunk was last seen. */
+    static class Location
+    {
+        final Path file;
+        final long offset;
+        final int length;
+
+        Location(Path file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // Chunk lists of files, with the version of the file each was made from
+    private final LinkedHashMap<Path, Listing> listings =
+        new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest)
+            {
+                return size() > MAX_FILES;
+            }
+        };
+    private final LinkedHashMap<Key, Location> locations =
+        new LinkedHashMap<Key, Location>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Location> eldest)
+            {
+                return size() > MAX_CHUNKS;
+            }
+        };
+
+    /** Returns the chunks of a file, or <code>null</code> if they are not
+        known for the given version.
+     */
+    StorageTransfer.Chunk[] chunks(Path file, long version)
+    {
+        Listing listing = listings.get(file);
+        return listing == null || listing.version != version ? null : listing.chunks;
+    }
+
+    /** Records the chunks of a file at a given version. */
+    void add(Path file, long version, StorageTransfer.Chunk[] chunks)
+    {
+        listings.put(file, new Listing(version, chunks));
+        for(StorageTransfer.Chunk chunk: chunks) {
+            locations.put(new Key(chunk.hash),
+                          new Location(file, chunk.offset, chunk.length));
+        }
+    }
+
+    /** Returns where a chunk with the given hash was last seen, or
+        <code>null</code> if it is not known.
+     */
+    Location find(byte[] hash)
+    {
+        return locations.get(new Key(hash));
+    }
+
+    /** Drops the chunk lists of the files at or below a path. */
+    void remove(Path path)
+    {
+        listings.keySet().removeIf(file -> file.isSubpath(path));
+    }
+
+    private static class Listing
+    {
+        final long version;
+        final StorageTransfer.Chunk[] chunks;
+
+        Listing(long version, StorageTransfer.Chunk[] chunks) {
+            this.version = version;
+            this.chunks = chunks;
+        }
+    }
+
+    // Hash compared by contents
+    private static class Key
+    {
+        final byte[] hash;
+
+        Key(byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Key && Arrays.equals(hash, ((Key)other).hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(hash);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package storage;
+
+import java.security.*;
+import java.util.*;
+
+/** Splits a stream of bytes into chunks by content.
+
+    <p>
+    A rolling gear hash is kept over the bytes, and a chunk ends where its
+    low bits are all zero, so boundaries follow the data rather than the
+    offset: an insertion only changes the chunks around it. Chunks are
+    between <code>MIN_CHUNK</code> and <code>MAX_CHUNK</code> bytes long,
+    about 64 KB on average. The gear table comes from a fixed seed, so every
+    storage server cuts the same data at the same places.
+
+    <p>
+    Objects of this class are not thread-safe.
+ */
+class Chunker
+{
+    /** Smallest chunk, except at the end of the data. */
+    static final int MIN_CHUNK = 16 * 1024;
+    /** Largest chunk. */
+    static final int MAX_CHUNK = 256 * 1024;
+    // A boundary falls on one position in 2^16 past the minimum
+    private static final long MASK = 0xffffL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5eed);
+        for(int i=0; i<GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final ArrayList<StorageTransfer.Chunk> chunks =
+        new ArrayList<StorageTransfer.Chunk>();
+    private final MessageDigest digest;
+    private long start = 0;
+    private int length = 0;
+    private long hash = 0;
+
+    Chunker() {
+        digest = sha256();
+    }
+
+    /** Adds the next bytes of the data. */
+    void update(byte[] data, int from, int count)
+    {
+        int hashed = from;
+        for(int i=from; i<from+count; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            length++;
+            if((length >= MIN_CHUNK && (hash & MASK) == 0) || length == MAX_CHUNK) {
+                digest.update(data, hashed, i + 1 - hashed);
+                hashed = i + 1;
+                cut();
+            }
+        }
+        digest.update(data, hashed, from + count - hashed);
+    }
+
+    /** Ends the data, and returns its chunks. */
+    StorageTransfer.Chunk[] finish()
+    {
+        if(length > 0) {
+            cut();
+        }
+        return chunks.toArray(new StorageTransfer.Chunk[chunks.size()]);
+    }
+
+    /** Returns the SHA-256 hash of a range of bytes. */
+    static byte[] hash(byte[] data)
+    {
+        return sha256().digest(data);
+    }
+
+    private static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void cut()
+    {
+        chunks.add(new StorageTransfer.Chunk(start, length, digest.digest()));
+        start += length;
+        length = 0;
+        hash = 0;
+    }
+}
@@ -0,0 +1,300 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+
+/** Block index of a local file stored in compressed form.
+
+    <p>
+    A compressed file is split into fixed-size blocks, each compressed
+    separately with Deflate. The file starts with a header that holds the
+    uncompressed length and the position of every compressed block, so a
+    read at any offset only decompresses the blocks it covers:
+
+    <pre>
+    magic (8 bytes) | block size (int) | length (long) | block count (int)
+    block count * (offset (long) | compressed length (int) | checksum (int))
+    compressed blocks
+    </pre>
+
+    <p>
+    The checksum is the CRC32C of the uncompressed block, the same checksum
+    <code>BlockChecksums</code> keeps for plain files. Every block is
+    verified against it as it is expanded, after Deflate has checked its
+    own trailer.
+
+    <p>
+    Compressed files are never written in place. A storage server expands a
+    compressed file back to its plain form before changing it.
+
+    <p>
+    The header does not decide whether a file is compressed, since a plain
+    file may hold the same bytes. The storage server records that itself,
+    and only loads the index of files it compressed.
+ */
+class CompressedFile
+{
+    /** Size of an uncompressed block, in bytes. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'D', 'F', 'S', 'Z', 'B', 'L', 'K', '2'};
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+
+    /** Uncompressed length of the file. */
+    final long length;
+    private final int blockSize;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+
+    private CompressedFile(long length, int blockSize, long[] offsets, int[] lengths,
+                           int[] crcs)
+    {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.crcs = crcs;
+    }
+
+    /** Reads the block index of a local file.
+
+        @param open Open handle for the file.
+        @return The block index, or <code>null</code> if the file does not
+                hold a valid header and index.
+        @throws IOException If the file cannot be read.
+     */
+    static CompressedFile load(OpenFile open) throws IOException
+    {
+        long raw = open.length();
+        if(raw < HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        open.read(0, header);
+        if(!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                header, MAGIC.length, HEADER_SIZE - MAGIC.length));
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        int count = in.readInt();
+        // A damaged header
+        if(blockSize <= 0 || length < 0 || count < 0
+                || count != (length + blockSize - 1) / blockSize
+                || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > raw) {
+            return null;
+        }
+
+        byte[] index = new byte[count * INDEX_ENTRY_SIZE];
+        open.read(HEADER_SIZE, index);
+        in = new DataInputStream(new ByteArrayInputStream(index));
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        int[] crcs = new int[count];
+        for(int b=0; b<count; b++) {
+            offsets[b] = in.readLong();
+            lengths[b] = in.readInt();
+            crcs[b] = in.readInt();
+            if(offsets[b] < 0 || lengths[b] < 0 || offsets[b] + lengths[b] > raw) {
+                return null;
+            }
+        }
+        return new CompressedFile(length, blockSize, offsets, lengths, crcs);
+    }
+
+    /** Reads a range of the uncompressed file.
+
+        @param file Path to the file, for reporting corrupt blocks.
+        @param open Open handle for the compressed file.
+        @param offset Offset of the first byte to read.
+        @param length Number of bytes to read.
+        @return The bytes read.
+        @throws CorruptBlockException If a block the range covers does not
+                                      match its checksum.
+        @throws IOException If the file cannot be read.
+     */
+    byte[] read(Path file, OpenFile open, long offset, int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        long position = offset;
+        while(position < offset + length) {
+            int b = (int) (position / blockSize);
+            byte[] block = block(file, open, b);
+            int from = (int) (position - (long) b * blockSize);
+            int n = (int) Math.min(block.length - from, offset + length - position);
+            System.arraycopy(block, from, result, (int) (position - offset), n);
+            position += n;
+        }
+        return result;
+    }
+
+    /** Verifies a single block of the file for the scrubber.
+
+        @param file Path to the file, for reporting a corrupt block.
+        @param open Open handle for the compressed file.
+        @param block Index of the uncompressed block.
+        @return The number of uncompressed bytes verified, or zero if the
+                block lies past the end of the file.
+        @throws CorruptBlockException If the block does not match its
+                                      checksum.
+        @throws IOException If the file cannot be read.
+     */
+    int verify(Path file, OpenFile open, long block) throws IOException
+    {
+        if(block >= offsets.length) {
+            return 0;
+        }
+        return block(file, open, (int) block).length;
+    }
+
+    /** Returns the checksum of every uncompressed block of the file, in the
+        form kept for plain files, or <code>null</code> if the file was
+        compressed in blocks of another size.
+     */
+    int[] checksums()
+    {
+        if(blockSize != BlockChecksums.BLOCK_SIZE) {
+            return null;
+        }
+        return crcs.clone();
+    }
+
+    /** Writes the uncompressed contents of the file to another local file,
+        verifying every block on the way.
+
+        @param file Path to the file, for reporting corrupt blocks.
+        @param open Open handle for the compressed file.
+        @param target File to be written.
+        @throws CorruptBlockException If a block does not match its checksum.
+        @throws IOException If either file cannot be accessed.
+     */
+    void expand(Path file, OpenFile open, File target) throws IOException
+    {
+        try(FileOutputStream out = new FileOutputStream(target)) {
+            for(int b=0; b<offsets.length; b++) {
+                out.write(block(file, open, b));
+            }
+            out.getFD().sync();
+        }
+    }
+
+    /** Writes a compressed copy of a local file.
+
+        @param source File to be compressed.
+        @param target File to receive the compressed copy.
+        @param bytesPerSecond Cap on the rate at which <code>source</code> is
+                              read.
+        @return <code>true</code> if the copy was written, <code>false</code>
+                if compression would save less than a tenth of the space. In
+                that case the contents of <code>target</code> are undefined.
+        @throws IOException If either file cannot be accessed.
+        @throws InterruptedException If interrupted while pausing to respect
+                                     the rate cap.
+     */
+    static boolean compress(File source, File target, long bytesPerSecond)
+        throws IOException, InterruptedException
+    {
+        long length = source.length();
+        int count = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        int[] crcs = new int[count];
+        CRC32C crc = new CRC32C();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try(RandomAccessFile in = new RandomAccessFile(source, "r");
+            RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(0);
+            out.seek(HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE);
+            byte[] block = new byte[BLOCK_SIZE];
+            byte[] packed = new byte[BLOCK_SIZE];
+            for(int b=0; b<count; b++) {
+                int n = (int) Math.min(BLOCK_SIZE, length - (long) b * BLOCK_SIZE);
+                in.readFully(block, 0, n);
+                crc.reset();
+                crc.update(block, 0, n);
+                crcs[b] = (int) crc.getValue();
+                deflater.reset();
+                deflater.setInput(block, 0, n);
+                deflater.finish();
+                offsets[b] = out.getFilePointer();
+                while(!deflater.finished()) {
+                    out.write(packed, 0, deflater.deflate(packed));
+                }
+                lengths[b] = (int) (out.getFilePointer() - offsets[b]);
+                Thread.sleep(Math.max(1, n * 1000L / bytesPerSecond));
+            }
+            if(out.length() > length - length / 10) {
+                return false;
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(header);
+            data.write(MAGIC);
+            data.writeInt(BLOCK_SIZE);
+            data.writeLong(length);
+            data.writeInt(count);
+            for(int b=0; b<count; b++) {
+                data.writeLong(offsets[b]);
+                data.writeInt(lengths[b]);
+                data.writeInt(crcs[b]);
+            }
+            out.seek(0);
+            out.write(header.toByteArray());
+            out.getFD().sync();
+            return true;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /* Expands one block. Inflating runs to the end of the Deflate stream,
+       so that its trailer is checked too, and the result must then match
+       the block's checksum.
+     */
+    private byte[] block(Path file, OpenFile open, int b) throws IOException
+    {
+        byte[] packed = new byte[lengths[b]];
+        open.read(offsets[b], packed);
+        byte[] block = new byte[(int) Math.min(blockSize, length - (long) b * blockSize)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int n = 0;
+            // Anything inflated beyond the block means the stream is damaged
+            byte[] excess = new byte[1];
+            while(!inflater.finished()) {
+                int inflated = n < block.length ? inflater.inflate(block, n, block.length - n)
+                                                : inflater.inflate(excess);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CorruptBlockException(file, b);
+                }
+                if(n == block.length && inflated > 0) {
+                    throw new CorruptBlockException(file, b);
+                }
+                n += inflated;
+            }
+            if(n != block.length) {
+                throw new CorruptBlockException(file, b);
+            }
+        }
+        catch(DataFormatException e) {
+            throw new CorruptBlockException(file, b);
+        }
+        finally {
+            inflater.end();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(block, 0, block.length);
+        if((int) crc.getValue() != crcs[b]) {
+            throw new CorruptBlockException(file, b);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,40 @@
+package storage;
+
+import java.io.*;
+
+import common.*;
+
+/** Thrown when data read from a storage server's local disk does not match
+    the checksum recorded for it.
+ */
+public class CorruptBlockException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Path file;
+    private final long block;
+
+    /** Creates the exception.
+
+        @param file Path to the file containing the corrupt block.
+        @param block Index of the corrupt block within the file.
+     */
+    public CorruptBlockException(Path file, long block)
+    {
+        super("Checksum mismatch in block " + block + " of " + file);
+        this.file = file;
+        this.block = block;
+    }
+
+    /** Returns the path to the file containing the corrupt block. */
+    public Path file()
+    {
+        return file;
+    }
+
+    /** Returns the index of the corrupt block within the file. */
+    public long block()
+    {
+        return block;
+    }
+}
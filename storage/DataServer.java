@@ -0,0 +1,146 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import common.*;
+
+/** Server side of the data transport of a storage server.
+
+    <p>
+    Connections are accepted and read with completion handlers on a fixed
+    group of threads, so the number of threads does not grow with the number
+    of clients or of calls in flight. Each request is carried out by the
+    group thread that read it, through the same methods as the RMI
+    interface, so it is throttled and checked the same way. Requests on one
+    connection are carried out in order; requests on different connections
+    run in parallel, up to the size of the group.
+ */
+class DataServer
+{
+    // Threads handling connections and carrying out requests
+    static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final StorageServer server;
+    private AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel listener;
+
+    DataServer(StorageServer server) {
+        this.server = server;
+    }
+
+    /** Starts accepting connections.
+
+        @param address Address to listen on; port zero picks a free port.
+        @return The port listened on.
+        @throws IOException If the socket cannot be opened.
+     */
+    synchronized int start(InetSocketAddress address) throws IOException
+    {
+        group = AsynchronousChannelGroup.withFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "StorageServer data transport");
+            t.setDaemon(true);
+            return t;
+        });
+        listener = AsynchronousServerSocketChannel.open(group).bind(address);
+        accept();
+        return ((InetSocketAddress)listener.getLocalAddress()).getPort();
+    }
+
+    /** Closes the listener and every connection. */
+    synchronized void stop()
+    {
+        if(group != null) {
+            try {
+                group.shutdownNow();
+            }
+            catch(IOException e) {
+                // The threads are daemons and exit with the process
+            }
+            group = null;
+        }
+    }
+
+    private void accept()
+    {
+        listener.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void attachment)
+            {
+                listener.accept(null, this);
+                connected(channel);
+            }
+
+            @Override
+            public void failed(Throwable cause, Void attachment)
+            {
+                // The listener was closed by stop
+            }
+        });
+    }
+
+    private void connected(AsynchronousSocketChannel channel)
+    {
+        FramedChannel[] connection = new FramedChannel[1];
+        connection[0] = new FramedChannel(channel, new FramedChannel.Receiver() {
+            @Override
+            public void received(ByteBuffer request)
+            {
+                connection[0].send(handle(request));
+            }
+
+            @Override
+            public void closed(Throwable cause)
+            {
+            }
+        });
+        connection[0].start();
+    }
+
+    /* Carries out a request and returns the response. */
+    private ByteBuffer handle(ByteBuffer request)
+    {
+        long id = request.remaining() >= 8 ? request.getLong() : -1;
+        try {
+            byte operation = request.get();
+            Path file = DataTransport.path(request);
+            long offset = request.getLong();
+            int length = request.getInt();
+            switch(operation) {
+            case DataTransport.SIZE:
+                return DataTransport.response(id, ByteBuffer.allocate(8)
+                                              .putLong(server.size(file)).array());
+            case DataTransport.READ:
+                if(length > DataTransport.MAX_DATA) {
+                    throw new IllegalArgumentException("Read is too large for the transport");
+                }
+                return DataTransport.response(id, server.read(file, offset, length));
+            case DataTransport.READ_PACKED:
+                if(length > DataTransport.MAX_DATA) {
+                    throw new IllegalArgumentException("Read is too large for the transport");
+                }
+                return DataTransport.response(id, server.readPacked(file, offset, length));
+            case DataTransport.WRITE_PACKED:
+                byte[] packed = new byte[request.remaining()];
+                request.get(packed);
+                server.writePacked(file, offset, packed);
+                return DataTransport.response(id, new byte[0]);
+            case DataTransport.WRITE:
+                if(length != request.remaining()) {
+                    throw new IllegalArgumentException("Data length does not match");
+                }
+                byte[] data = new byte[length];
+                request.get(data);
+                server.write(file, offset, data);
+                return DataTransport.response(id, new byte[0]);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        }
+        catch(Exception e) {
+            return DataTransport.response(id, e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.*;
+
+import common.*;
+
+/** Messages of the data transport of storage servers.
+
+    <p>
+    Besides its RMI interfaces, a storage server serves <code>size</code>,
+    <code>read</code> and <code>write</code>, and their packed forms, over a
+    plain socket at the address returned by
+    <code>StorageTransfer.dataAddress</code>. Messages are
+    frames of a <code>FramedChannel</code>. A client may send many requests
+    without waiting, each tagged with an identifier of its choice; each
+    response carries the identifier of its request, so a single connection
+    keeps any number of calls in flight.
+
+    <p>
+    A request holds its identifier, the operation, the path, the offset and
+    the length, followed for a write by the data. A response holds the
+    identifier and a status, followed by the result or, for a failure, the
+    message of the exception the call threw.
+ */
+public class DataTransport
+{
+    /** Largest read or write carried by the transport, in bytes. Larger
+        calls go through the RMI interface.
+     */
+    public static final int MAX_DATA = 64 * 1024 * 1024;
+
+    /** Operation returning the size of a file. */
+    public static final byte SIZE = 1;
+    /** Operation reading a range of a file. */
+    public static final byte READ = 2;
+    /** Operation writing to a file. */
+    public static final byte WRITE = 3;
+    /** Operation reading a range of a file, returned packed. */
+    public static final byte READ_PACKED = 4;
+    /** Operation writing packed data to a file. */
+    public static final byte WRITE_PACKED = 5;
+
+    /** Form of packed data that follows as it is. */
+    public static final byte RAW = 0;
+    /** Form of packed data compressed with Deflate. */
+    public static final byte DEFLATED = 1;
+    // Size of the form and length in front of packed data
+    private static final int PACKED_HEADER = 1 + 4;
+
+    /** Status of a call that succeeded. */
+    public static final byte OK = 0;
+    /** Status of a call that threw <code>FileNotFoundException</code>. */
+    public static final byte NOT_FOUND = 1;
+    /** Status of a call that threw <code>IndexOutOfBoundsException</code>. */
+    public static final byte OUT_OF_BOUNDS = 2;
+    /** Status of a call that threw <code>IOException</code>. */
+    public static final byte IO_ERROR = 3;
+    /** Status of a call that was malformed or threw anything else. */
+    public static final byte FAILED = 4;
+
+    private DataTransport()
+    {
+    }
+
+    /** Encodes a request.
+
+        @param data The data to write, or <code>null</code> for other
+                    operations.
+     */
+    public static ByteBuffer request(long id, byte operation, Path file, long offset,
+                                     int length, byte[] data)
+    {
+        byte[] path = file.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = FramedChannel.allocate(
+            8 + 1 + 4 + path.length + 8 + 4 + (data == null ? 0 : data.length));
+        frame.putLong(id).put(operation).putInt(path.length).put(path);
+        frame.putLong(offset).putInt(length);
+        if(data != null) {
+            frame.put(data);
+        }
+        return frame;
+    }
+
+    /** Packs data to be sent: a form byte, the length of the data, and the
+        data itself, compressed if asked and if that saves at least a tenth,
+        as for files compressed at rest.
+
+        @param data The data.
+        @param compress Whether to try compressing the data.
+        @return The packed data.
+     */
+    public static byte[] pack(byte[] data, boolean compress)
+    {
+        if(compress && data.length > 0) {
+            // Output beyond the saving needed is not worth producing
+            byte[] packed = new byte[PACKED_HEADER + data.length - data.length / 10];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                int n = deflater.deflate(packed, PACKED_HEADER, packed.length - PACKED_HEADER);
+                if(deflater.finished()) {
+                    ByteBuffer.wrap(packed).put(DEFLATED).putInt(data.length);
+                    return Arrays.copyOf(packed, PACKED_HEADER + n);
+                }
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        byte[] packed = new byte[PACKED_HEADER + data.length];
+        ByteBuffer.wrap(packed).put(RAW).putInt(data.length).put(data);
+        return packed;
+    }
+
+    /** Unpacks data packed by <code>pack</code>.
+
+        @param packed The packed data.
+        @return The data.
+        @throws IOException If the packed data is malformed, or holds more
+                            than <code>MAX_DATA</code> bytes.
+     */
+    public static byte[] unpack(byte[] packed) throws IOException
+    {
+        if(packed.length < PACKED_HEADER) {
+            throw new IOException("Packed data is truncated");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        byte form = buffer.get();
+        int length = buffer.getInt();
+        if(length < 0 || length > MAX_DATA) {
+            throw new IOException("Packed data has a length of " + length);
+        }
+        byte[] data = new byte[length];
+        if(form == RAW) {
+            if(buffer.remaining() != length) {
+                throw new IOException("Packed data does not match its length");
+            }
+            buffer.get(data);
+            return data;
+        }
+        if(form != DEFLATED) {
+            throw new IOException("Unknown form of packed data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed, PACKED_HEADER, packed.length - PACKED_HEADER);
+            int n = 0;
+            while(n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, length - n);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            // Runs the stream to its end, so that its trailer is checked
+            int excess = 0;
+            if(n == length && !inflater.finished()) {
+                excess = inflater.inflate(new byte[1]);
+            }
+            if(n != length || excess != 0 || !inflater.finished()
+               || inflater.getRemaining() != 0) {
+                throw new IOException("Packed data does not match its length");
+            }
+            return data;
+        }
+        catch(DataFormatException e) {
+            throw new IOException("Packed data is corrupt", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /** Reads the path of a request, after its identifier and operation. */
+    public static Path path(ByteBuffer request)
+    {
+        int length = request.getInt();
+        if(length < 0 || length > request.remaining()) {
+            throw new IllegalArgumentException("Path length out of range");
+        }
+        byte[] path = new byte[length];
+        request.get(path);
+        return new Path(new String(path, StandardCharsets.UTF_8));
+    }
+
+    /** Encodes a response to a call that succeeded. */
+    static ByteBuffer response(long id, byte[] result)
+    {
+        ByteBuffer frame = FramedChannel.allocate(8 + 1 + result.length);
+        frame.putLong(id).put(OK).put(result);
+        return frame;
+    }
+
+    /** Encodes a response to a call that threw an exception. */
+    static ByteBuffer response(long id, Throwable failure)
+    {
+        byte status = failure instanceof FileNotFoundException ? NOT_FOUND
+                    : failure instanceof IndexOutOfBoundsException ? OUT_OF_BOUNDS
+                    : failure instanceof IOException ? IO_ERROR
+                    : FAILED;
+        String message = failure.getMessage() == null ? failure.toString()
+                                                      : failure.getMessage();
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = FramedChannel.allocate(8 + 1 + text.length);
+        frame.putLong(id).put(status).put(text);
+        return frame;
+    }
+
+    /** Rebuilds the exception of a failed call from the status and the rest
+        of its response.
+     */
+    public static Exception failure(byte status, ByteBuffer response)
+    {
+        byte[] text = new byte[response.remaining()];
+        response.get(text);
+        String message = new String(text, StandardCharsets.UTF_8);
+        switch(status) {
+        case NOT_FOUND:
+            return new FileNotFoundException(message);
+        case OUT_OF_BOUNDS:
+            return new IndexOutOfBoundsException(message);
+        case IO_ERROR:
+            return new IOException(message);
+        default:
+            return new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package storage;
+
+import java.io.*;
+
+/** Local file kept open by a storage server between calls.
+
+    <p>
+    Holding the <code>RandomAccessFile</code> open saves an open and close on
+    every read and write. Writes may optionally go through a write-back buffer,
+    which coalesces small sequential writes (such as a stream of appends) into
+    a single larger write to the local file.
+
+    <p>
+    Objects of this class are not thread-safe. The storage server only uses
+    them while holding its own lock.
+ */
+class OpenFile
+{
+    /** Size of the write-back buffer, in bytes. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private RandomAccessFile handle;
+    private boolean writable;
+
+    // Pending bytes, destined for the range starting at bufferOffset
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long bufferOffset = 0;
+    private int bufferLength = 0;
+
+    /** Opens the given local file.
+
+        @param file The local file.
+        @param writable Whether the file should be opened for writing.
+        @throws IOException If the file cannot be opened.
+     */
+    OpenFile(File file, boolean writable) throws IOException
+    {
+        this.file = file;
+        this.writable = writable;
+        this.handle = new RandomAccessFile(file, writable ? "rw" : "r");
+    }
+
+    /** Returns the length of the file, including any buffered bytes. */
+    long length() throws IOException
+    {
+        return Math.max(handle.length(), bufferOffset + bufferLength);
+    }
+
+    /** Reads <code>into.length</code> bytes starting at <code>offset</code>.
+
+        <p>
+        Buffered writes are flushed first so that the read sees them.
+     */
+    void read(long offset, byte[] into) throws IOException
+    {
+        flush();
+        handle.seek(offset);
+        handle.readFully(into);
+    }
+
+    /** Writes <code>data</code> at <code>offset</code>.
+
+        @param buffered If <code>true</code>, the data may be kept in the
+                        write-back buffer until the next flush. Otherwise, the
+                        data is handed to the operating system before this
+                        method returns.
+     */
+    void write(long offset, byte[] data, boolean buffered) throws IOException
+    {
+        if(!writable) {
+            // Reopen for writing. A read-only handle never has pending bytes.
+            handle.close();
+            handle = new RandomAccessFile(file, "rw");
+            writable = true;
+        }
+        // Only sequential writes can be coalesced with what is pending
+        if(bufferLength > 0 && offset != bufferOffset + bufferLength) {
+            flush();
+        }
+        if(!buffered || data.length > buffer.length) {
+            flush();
+            handle.seek(offset);
+            handle.write(data);
+            return;
+        }
+        if(bufferLength + data.length > buffer.length) {
+            flush();
+        }
+        if(bufferLength == 0) {
+            bufferOffset = offset;
+        }
+        System.arraycopy(data, 0, buffer, bufferLength, data.length);
+        bufferLength += data.length;
+    }
+
+    /** Hands any buffered bytes to the operating system. */
+    void flush() throws IOException
+    {
+        if(bufferLength == 0) {
+            return;
+        }
+        handle.seek(bufferOffset);
+        handle.write(buffer, 0, bufferLength);
+        bufferLength = 0;
+    }
+
+    /** Flushes buffered bytes and forces them to the local disk. */
+    void sync() throws IOException
+    {
+        flush();
+        if(writable) {
+            handle.getFD().sync();
+        }
+    }
+
+    /** Flushes buffered bytes and closes the file. */
+    void close() throws IOException
+    {
+        try {
+            flush();
+        }
+        finally {
+            handle.close();
+        }
+    }
+
+    /** Closes the file, dropping any buffered bytes. Used when the file is
+        being deleted.
+     */
+    void discard()
+    {
+        bufferLength = 0;
+        try {
+            handle.close();
+        }
+        catch(IOException io) {
+            io.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package storage;
+
+import java.util.*;
+
+import common.*;
+
+/** Files of a storage server whose size changed, in the order of their last
+    change.
+
+    <p>
+    Each file appears once, under the sequence number of its latest change,
+    so the log holds at most one entry per file the server has held.
+    Entries of removed files are dropped once a reader has read past them.
+
+    <p>
+    The storage server also records writes that leave the size unchanged,
+    so that the sequence number of a file's entry serves as its version.
+
+    <p>
+    Objects of this class are not thread-safe. The storage server only uses
+    them with its lock held.
+ */
+class SizeChangeLog
+{
+    // Sequence number the next change will get
+    private long next = 1;
+    private final TreeMap<Long, Path> bySequence = new TreeMap<Long, Path>();
+    private final HashMap<Path, Long> sequenceOf = new HashMap<Path, Long>();
+    // Files removed since a reader last read past them
+    private final HashSet<Path> removed = new HashSet<Path>();
+
+    /** Records that the size of a file changed. */
+    void changed(Path file)
+    {
+        Long old = sequenceOf.put(file, next);
+        if(old != null) {
+            bySequence.remove(old);
+        }
+        bySequence.put(next, file);
+        removed.remove(file);
+        next++;
+    }
+
+    /** Returns the sequence number of the last change to a file, recording
+        a change first if the log has none for it.
+     */
+    long version(Path file)
+    {
+        Long sequence = sequenceOf.get(file);
+        if(sequence == null || removed.contains(file)) {
+            changed(file);
+            sequence = sequenceOf.get(file);
+        }
+        return sequence;
+    }
+
+    /** Records that a file was removed. */
+    void removed(Path file)
+    {
+        changed(file);
+        removed.add(file);
+    }
+
+    /** Records that every file at or below a path was removed. */
+    void removedBelow(Path path)
+    {
+        if(sequenceOf.containsKey(path)) {
+            // A file, which has nothing below it
+            removed(path);
+            return;
+        }
+        ArrayList<Path> below = new ArrayList<Path>();
+        for(Path file: sequenceOf.keySet()) {
+            if(file.isSubpath(path) && !removed.contains(file)) {
+                below.add(file);
+            }
+        }
+        for(Path file: below) {
+            removed(file);
+        }
+    }
+
+    /** Returns the files changed after a sequence number, oldest change
+        first, and drops the entries of removed files at or before it, which
+        the reader has seen.
+
+        @param after Sequence number of the last change already read.
+        @param limit Maximum number of files to return.
+        @param files Receives the files.
+        @return The sequence number of the last change returned, or
+                <code>after</code> if there is none.
+     */
+    long read(long after, int limit, List<Path> files)
+    {
+        Iterator<Path> gone = removed.iterator();
+        while(gone.hasNext()) {
+            Path file = gone.next();
+            long sequence = sequenceOf.get(file);
+            if(sequence <= after) {
+                gone.remove();
+                sequenceOf.remove(file);
+                bySequence.remove(sequence);
+            }
+        }
+        long last = after;
+        for(Map.Entry<Long, Path> entry: bySequence.tailMap(after, false).entrySet()) {
+            if(files.size() == limit) {
+                break;
+            }
+            files.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return last;
+    }
+}
@@ -0,0 +1,440 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+
+/** Point-in-time views of a storage server's files.
+
+    <p>
+    Taking a snapshot only records the directory it covers, so it takes
+    constant time. Files are preserved lazily: just before the first change
+    to a file after the snapshot, its length is recorded, and before each
+    write the old contents of the blocks about to be overwritten are kept.
+    Reading a file from a snapshot combines the kept blocks with the live
+    file, so unchanged data is never copied.
+
+    <p>
+    Only an index is kept in memory. Kept blocks are appended to a spill file
+    per snapshot, in a directory given by the storage server. A file deleted
+    while a snapshot still needs it is not read at all: the storage server
+    renames it into its snapshot area and hands it over with
+    <code>deleted</code>. Spill files and deleted files are removed when the
+    last snapshot using them is released. Snapshots do not survive a restart
+    of the storage server.
+
+    <p>
+    Objects of this class are not thread-safe. The storage server only uses
+    them while holding its own lock.
+ */
+class Snapshots
+{
+    /** Size of a preserved block, in bytes. */
+    static final int BLOCK_SIZE = BlockChecksums.BLOCK_SIZE;
+
+    /** Read access to the contents of a file, whether it is stored plain or
+        compressed.
+     */
+    interface Contents
+    {
+        /** Returns the length of the file. */
+        long length() throws IOException;
+
+        /** Reads <code>into.length</code> bytes starting at
+            <code>offset</code>.
+         */
+        void read(long offset, byte[] into) throws IOException;
+    }
+
+    /* A deleted file kept for the snapshots that cover it. */
+    private static class Deleted
+    {
+        final File file;
+        final boolean compressed;
+        // Versions still reading from the file
+        int references = 0;
+
+        Deleted(File file, boolean compressed) {
+            this.file = file;
+            this.compressed = compressed;
+        }
+    }
+
+    /* State of a file when the snapshot was taken. */
+    private static class Version
+    {
+        final boolean existed;
+        final long length;
+        // Positions in the spill file of the old contents of blocks changed
+        // since, by block index
+        final HashMap<Long, Long> blocks = new HashMap<Long, Long>();
+        // The file as it was when deleted, or null while it is the live file
+        Deleted deleted = null;
+
+        Version(boolean existed, long length) {
+            this.existed = existed;
+            this.length = length;
+        }
+    }
+
+    private static class Snapshot
+    {
+        final Path root;
+        // Files changed since the snapshot was taken
+        final HashMap<Path, Version> versions = new HashMap<Path, Version>();
+        final File spillFile;
+        // Opened when the first block is kept
+        RandomAccessFile spill = null;
+
+        Snapshot(Path root, File spillFile) {
+            this.root = root;
+            this.spillFile = spillFile;
+        }
+    }
+
+    private final File spillDirectory;
+    private final HashMap<Long, Snapshot> snapshots = new HashMap<Long, Snapshot>();
+    private long nextId = 1;
+    private long nextDeleted = 1;
+
+    /** Creates an empty set of snapshots.
+
+        @param spillDirectory Directory for the spill files. It is created
+                              when the first block is kept.
+     */
+    Snapshots(File spillDirectory)
+    {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /** Takes a snapshot of the tree rooted at a path.
+
+        @return The identifier of the snapshot.
+     */
+    long create(Path root)
+    {
+        long id = nextId++;
+        snapshots.put(id, new Snapshot(root, new File(spillDirectory, id + ".blocks")));
+        return id;
+    }
+
+    /** Releases a snapshot, and removes the blocks and deleted files no other
+        snapshot needs.
+
+        @return <code>true</code> if the snapshot existed.
+     */
+    boolean release(long id)
+    {
+        Snapshot snapshot = snapshots.remove(id);
+        if(snapshot == null) {
+            return false;
+        }
+        if(snapshot.spill != null) {
+            try {
+                snapshot.spill.close();
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+        }
+        snapshot.spillFile.delete();
+        for(Version version: snapshot.versions.values()) {
+            if(version.deleted != null && --version.deleted.references == 0) {
+                version.deleted.file.delete();
+            }
+        }
+        return true;
+    }
+
+    /** Releases every snapshot. */
+    void releaseAll()
+    {
+        for(Long id: new ArrayList<Long>(snapshots.keySet())) {
+            release(id);
+        }
+    }
+
+    /** Returns <code>true</code> if no snapshot is held. */
+    boolean isEmpty()
+    {
+        return snapshots.isEmpty();
+    }
+
+    /** Keeps the old contents of the blocks a write is about to change. */
+    void beforeWrite(Path file, Contents live, long offset, long length) throws IOException
+    {
+        // Shared between snapshots, so each block is read once
+        HashMap<Long, byte[]> read = new HashMap<Long, byte[]>();
+        for(Snapshot snapshot: snapshots.values()) {
+            if(!file.isSubpath(snapshot.root)) {
+                continue;
+            }
+            Version version = versionOf(snapshot, file, live);
+            // Only bytes that existed at the time of the snapshot matter, and
+            // none of the live file's once the snapshot's file was deleted
+            long end = Math.min(offset + length, version.length);
+            if(!version.existed || version.deleted != null || offset >= end) {
+                continue;
+            }
+            for(long b = offset / BLOCK_SIZE; b <= (end - 1) / BLOCK_SIZE; b++) {
+                if(version.blocks.containsKey(b)) {
+                    continue;
+                }
+                byte[] data = block(live, b, read);
+                int n = (int) Math.min(data.length, version.length - b * BLOCK_SIZE);
+                if(snapshot.spill == null) {
+                    spillDirectory.mkdirs();
+                    snapshot.spill = new RandomAccessFile(snapshot.spillFile, "rw");
+                }
+                long position = snapshot.spill.length();
+                snapshot.spill.seek(position);
+                snapshot.spill.write(data, 0, n);
+                version.blocks.put(b, position);
+            }
+        }
+    }
+
+    /** Returns <code>true</code> if a snapshot still reads a file from the
+        live copy, so the file must be handed over with <code>deleted</code>
+        instead of being removed.
+     */
+    boolean needs(Path file)
+    {
+        for(Snapshot snapshot: snapshots.values()) {
+            if(!file.isSubpath(snapshot.root)) {
+                continue;
+            }
+            Version version = snapshot.versions.get(file);
+            if(version == null || (version.existed && version.deleted == null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns a name, not used before, for a deleted file in a directory. */
+    File deletedName(File directory)
+    {
+        return new File(directory, (nextDeleted++) + ".deleted");
+    }
+
+    /** Takes over a deleted file that the snapshots covering it still need.
+
+        @param file Path the file had.
+        @param length Length the file had, uncompressed.
+        @param kept Local file holding its contents, which is removed once no
+                    snapshot needs it.
+        @param compressed Whether <code>kept</code> is in compressed form.
+     */
+    void deleted(Path file, long length, File kept, boolean compressed)
+    {
+        Deleted deleted = new Deleted(kept, compressed);
+        for(Snapshot snapshot: snapshots.values()) {
+            if(!file.isSubpath(snapshot.root)) {
+                continue;
+            }
+            Version version = snapshot.versions.get(file);
+            if(version == null) {
+                version = new Version(true, length);
+                snapshot.versions.put(file, version);
+            }
+            if(version.existed && version.deleted == null) {
+                version.deleted = deleted;
+                deleted.references++;
+            }
+        }
+        if(deleted.references == 0) {
+            kept.delete();
+        }
+    }
+
+    /** Records that a file about to be created did not exist in any snapshot
+        that covers it and has not seen it yet.
+     */
+    void beforeCreate(Path file)
+    {
+        for(Snapshot snapshot: snapshots.values()) {
+            if(file.isSubpath(snapshot.root) && !snapshot.versions.containsKey(file)) {
+                snapshot.versions.put(file, new Version(false, 0));
+            }
+        }
+    }
+
+    /** Reads a range of a file as it was when a snapshot was taken.
+
+        @param live Contents of the live file, or <code>null</code> if the
+                    file does not exist.
+        @throws IllegalArgumentException If there is no such snapshot.
+        @throws FileNotFoundException If the file did not exist in the
+                                      snapshot.
+        @throws IndexOutOfBoundsException If the range lies outside the file
+                                          as it was in the snapshot.
+     */
+    byte[] read(long id, Path file, Contents live, long offset, int length)
+        throws IOException
+    {
+        Version version = find(id, file, live);
+        Snapshot snapshot = snapshots.get(id);
+        long fileLength = version == null ? live.length() : version.length;
+        if(offset < 0 || length < 0 || offset + length > fileLength) {
+            throw new IndexOutOfBoundsException("Length + Offset exceed file length");
+        }
+
+        byte[] result = new byte[length];
+        if(version == null) {
+            // Unchanged since the snapshot
+            live.read(offset, result);
+            return result;
+        }
+        OpenFile deletedFile = null;
+        try {
+            Contents source = live;
+            if(version.deleted != null) {
+                deletedFile = new OpenFile(version.deleted.file, false);
+                source = contentsOf(file, deletedFile, version.deleted.compressed);
+            }
+            long position = offset;
+            while(position < offset + length) {
+                long b = position / BLOCK_SIZE;
+                long blockEnd = Math.min((b + 1) * BLOCK_SIZE, offset + length);
+                byte[] part = new byte[(int) (blockEnd - position)];
+                Long kept = version.blocks.get(b);
+                if(kept != null) {
+                    snapshot.spill.seek(kept + position - b * BLOCK_SIZE);
+                    snapshot.spill.readFully(part);
+                }
+                else {
+                    source.read(position, part);
+                }
+                System.arraycopy(part, 0, result, (int) (position - offset), part.length);
+                position = blockEnd;
+            }
+            return result;
+        }
+        finally {
+            if(deletedFile != null) {
+                deletedFile.discard();
+            }
+        }
+    }
+
+    /** Returns the length of a file as it was when a snapshot was taken.
+
+        @param id The identifier of the snapshot.
+        @param file Path to the file.
+        @param live Current contents of the file, or <code>null</code> if it
+                    no longer exists.
+        @throws IllegalArgumentException If the snapshot is not held.
+        @throws FileNotFoundException If the file did not exist in the
+                                      snapshot.
+        @throws IOException If the file cannot be read.
+     */
+    long length(long id, Path file, Contents live) throws IOException
+    {
+        Version version = find(id, file, live);
+        return version == null ? live.length() : version.length;
+    }
+
+    /* Returns the version of a file kept for a snapshot, or null if the
+       live file is unchanged since the snapshot.
+     */
+    private Version find(long id, Path file, Contents live) throws FileNotFoundException
+    {
+        Snapshot snapshot = snapshots.get(id);
+        if(snapshot == null) {
+            throw new IllegalArgumentException("No such snapshot");
+        }
+        if(!file.isSubpath(snapshot.root)) {
+            throw new FileNotFoundException("Path is not in the snapshot");
+        }
+        Version version = snapshot.versions.get(file);
+        if(version == null && live == null) {
+            throw new FileNotFoundException("File does not exist in the snapshot");
+        }
+        if(version != null && !version.existed) {
+            throw new FileNotFoundException("File did not exist when the snapshot was taken");
+        }
+        return version;
+    }
+
+    /** Returns the contents of a local file.
+
+        @param file Path to the file, for reporting corrupt blocks.
+        @param open Open handle for the file.
+        @param index Block index of the file if it is stored compressed, or
+                     <code>null</code> if it is plain.
+     */
+    static Contents contents(Path file, OpenFile open, CompressedFile index)
+    {
+        if(index == null) {
+            return new Contents() {
+                @Override
+                public long length() throws IOException
+                {
+                    return open.length();
+                }
+
+                @Override
+                public void read(long offset, byte[] into) throws IOException
+                {
+                    open.read(offset, into);
+                }
+            };
+        }
+        return new Contents() {
+            @Override
+            public long length()
+            {
+                return index.length;
+            }
+
+            @Override
+            public void read(long offset, byte[] into) throws IOException
+            {
+                byte[] data = index.read(file, open, offset, into.length);
+                System.arraycopy(data, 0, into, 0, into.length);
+            }
+        };
+    }
+
+    /* Returns the contents of a kept deleted file. */
+    private static Contents contentsOf(Path file, OpenFile open, boolean compressed)
+        throws IOException
+    {
+        if(!compressed) {
+            return contents(file, open, null);
+        }
+        CompressedFile index = CompressedFile.load(open);
+        if(index == null) {
+            throw new IOException("Kept file is damaged");
+        }
+        return contents(file, open, index);
+    }
+
+    private Version versionOf(Snapshot snapshot, Path file, Contents live) throws IOException
+    {
+        Version version = snapshot.versions.get(file);
+        if(version == null) {
+            version = new Version(true, live.length());
+            snapshot.versions.put(file, version);
+        }
+        return version;
+    }
+
+    /* Reads a block as it is now. Files only grow, so it covers the block as
+       it was in every snapshot.
+     */
+    private static byte[] block(Contents live, long b, HashMap<Long, byte[]> read)
+        throws IOException
+    {
+        byte[] data = read.get(b);
+        if(data == null) {
+            long start = b * BLOCK_SIZE;
+            data = new byte[(int) Math.min(BLOCK_SIZE, live.length() - start)];
+            live.read(start, data);
+            read.put(b, data);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,172 @@
+package storage;
+
+import java.io.*;
+
+import common.*;
+import rmi.*;
+
+/** Storage server interface used by the naming server, beyond the commands
+    every storage server accepts.
+
+    <p>
+    The naming server uses this interface when the command stub a storage
+    server registered with implements it, and otherwise falls back to
+    <code>Command</code> alone.
+ */
+public interface StorageControl extends Command
+{
+    /** Sizes of the files whose size changed, returned by
+        <code>sizeChanges</code>.
+     */
+    public static class SizeChanges implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Incarnation of the storage server the changes come from. */
+        public final long incarnation;
+        /** Files whose size changed, in the order of their last change. */
+        public final Path[] files;
+        /** Size of each file when the call was made, or <code>-1</code> if
+            the file no longer exists.
+         */
+        public final long[] sizes;
+        /** Sequence number to pass to the next call. */
+        public final long next;
+
+        public SizeChanges(long incarnation, Path[] files, long[] sizes, long next) {
+            this.incarnation = incarnation;
+            this.files = files;
+            this.sizes = sizes;
+            this.next = next;
+        }
+    }
+
+    /** Returns the files whose size changed after a given point, with their
+        current sizes.
+
+        <p>
+        Every file the server holds when it starts counts as changed, so a
+        caller that starts from zero learns the size of every file. A file
+        that changes several times is only returned once, with its latest
+        size, which keeps the cost of catching up independent of the number
+        of writes. Sequence numbers start again when the storage server is
+        restarted. The server then has a new incarnation, and a call that
+        passes the old one gets every change from the start.
+
+        @param incarnation The <code>incarnation</code> of the previous
+                           result, or zero for the first call.
+        @param after The <code>next</code> field of the previous result, or
+                     zero for the first call.
+        @param limit Maximum number of files to return.
+        @return The changes, and the point to resume from.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    SizeChanges sizeChanges(long incarnation, long after, int limit) throws RMIException;
+
+    /** Copies a file from another storage server, as <code>copy</code> does,
+        reading it no faster than the given rate.
+
+        @param file Path to the file to be copied.
+        @param server Storage server from which the file is to be downloaded.
+        @param bytesPerSecond Cap on the rate at which the file is read.
+        @return <code>true</code> on success, <code>false</code> otherwise.
+        @throws FileNotFoundException If the file is not present on the remote
+                                      storage server, or the path refers to a
+                                      directory.
+        @throws IOException If an I/O exception occurs either on the remote or
+                            on this storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, whether between the caller and this
+                             storage server, or between the two storage
+                             servers.
+     */
+    boolean copy(Path file, Storage server, long bytesPerSecond)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the version of a file. The version changes whenever the file
+        is written, created, replaced or deleted, so a copy made between two
+        calls that return the same version is up to date.
+
+        @throws FileNotFoundException If the path does not refer to a file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long version(Path file) throws RMIException, FileNotFoundException;
+
+    /** Holds back writes to a file, so that it cannot change while clients
+        are pointed at another copy of it. Writes wait until the fence is
+        lifted with <code>unfence</code>, until the file is deleted, in which
+        case they fail with <code>FileNotFoundException</code>, or until the
+        timeout passes, so a caller that fails cannot block the file for
+        good.
+
+        @param file Path to the file.
+        @param timeout Time after which the fence lapses, in milliseconds.
+        @return The version of the file once fenced.
+        @throws FileNotFoundException If the path does not refer to a file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long fence(Path file, long timeout) throws RMIException, FileNotFoundException;
+
+    /** Lets writes to a fenced file go ahead.
+
+        @param file Path to the file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    void unfence(Path file) throws RMIException;
+
+    /** Deletes a file, unless it changed since it had the given version.
+        Writes waiting on a fence of the file then fail with
+        <code>FileNotFoundException</code>.
+
+        @param file Path to the file.
+        @param version Version the file must still have.
+        @return <code>true</code> if the file was deleted, <code>false</code>
+                if it changed, no longer exists, or could not be deleted.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    boolean retire(Path file, long version) throws RMIException;
+
+    /** Holds back every write to the server, as <code>fence</code> does for
+        one file, so that a snapshot can be taken on several servers at the
+        same point. Writes already under way finish before the call returns.
+
+        @param timeout Time after which the hold lapses, in milliseconds.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    void hold(long timeout) throws RMIException;
+
+    /** Lets writes held back by <code>hold</code> go ahead.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    void unhold() throws RMIException;
+
+    /** Takes a snapshot of a file or directory tree on this server. Files in
+        it can then be read as they are now with
+        <code>StorageTransfer.readSnapshot</code>.
+
+        @param path Path to the file or directory.
+        @return The identifier of the snapshot on this server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long snapshot(Path path) throws RMIException;
+
+    /** Releases a snapshot and the data kept for it.
+
+        @param id The identifier of the snapshot on this server.
+        @return <code>true</code> if the snapshot was held.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    boolean releaseSnapshot(long id) throws RMIException;
+}
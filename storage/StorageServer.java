@@ -7,6 +7,8 @@ import common.*;
 import rmi.*;
 import naming.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 /** Storage server.
 
@@ -15,12 +17,119 @@ import java.util.*;
     through a storage server are those accessible under a given directory of the
     local filesystem.
  */
-public class StorageServer implements Storage, Command
+public class StorageServer implements StorageTransfer, StorageControl
 {
 
     File root;
-    SubSkeleton<Storage> storageSubSkeleton;
-    SubSkeleton<Command> commandSubSkeleton;
+    // Local directories holding the files, fastest first; root is the first
+    File[] tiers;
+    SubSkeleton<StorageTransfer> storageSubSkeleton;
+    SubSkeleton<StorageControl> commandSubSkeleton;
+
+    // Maximum number of local files kept open between calls
+    static final int MAX_OPEN_FILES = 64;
+    // Files kept open between calls, least recently used first
+    LinkedHashMap<Path, OpenFile> openFiles = new LinkedHashMap<Path, OpenFile>(16, 0.75f, true);
+
+    // Files whose size changed, for the naming server; sequence numbers are
+    // only valid for this incarnation
+    SizeChangeLog sizeLog = new SizeChangeLog();
+    final long incarnation = new Random().nextLong();
+    // Files whose writes are held back, with the time each fence lapses
+    HashMap<Path, Long> fences = new HashMap<Path, Long>();
+    // Time until which all writes are held back, for a snapshot
+    long heldUntil = 0;
+
+    // Checksums of every block written, read or scrubbed, saved beside the
+    // data in the root's private directory
+    BlockChecksums checksums;
+    // Snapshots held, with the old blocks kept for them
+    Snapshots snapshots;
+    // Serves reads and writes without a thread per call
+    DataServer dataServer = new DataServer(this);
+    InetSocketAddress dataAddress;
+    /** Name of the directory at the top of every tier that holds the
+        server's own files, such as those kept for snapshots and the markers
+        of compressed files. It is never listed, created or deleted through
+        the client or command interfaces, and the naming server refuses to
+        create anything under this name.
+     */
+    public static final String PRIVATE_DIRECTORY = ".storageserver";
+    static final Path PRIVATE_PATH = new Path("/" + PRIVATE_DIRECTORY);
+    // Default cap on the scrubber's disk reads, in bytes per second
+    static final long DEFAULT_SCRUB_RATE = 4 * 1024 * 1024;
+    // Pause between two passes of the scrubber over the root directory
+    static final long SCRUB_INTERVAL = 60 * 1000;
+    volatile long scrubRate = DEFAULT_SCRUB_RATE;
+    Scrubber scrubber;
+
+    // Reads and writes of each file, halved on every migration pass
+    HashMap<Path, Integer> accessCounts = new HashMap<Path, Integer>();
+    // Reads and writes served from each tier
+    long[] tierHits;
+    long promotions = 0;
+    long demotions = 0;
+    // Accesses during one migration pass that make a file hot
+    static final int PROMOTE_THRESHOLD = 16;
+    // Default cap on the migrator's disk copies, in bytes per second
+    static final long DEFAULT_MIGRATION_RATE = 8 * 1024 * 1024;
+    // Pause between two migration passes
+    static final long MIGRATION_INTERVAL = 5 * 60 * 1000;
+    // Suffix of the partial copy made while a file moves between tiers, is
+    // compressed or expanded, or is copied from another storage server
+    static final String MIGRATING_SUFFIX = ".migrating";
+    // Size of each read made when copying from another storage server
+    static final int COPY_CHUNK = 256 * 1024;
+    // Chunks of local files by content, so copies skip the data already here
+    ChunkIndex chunkIndex = new ChunkIndex();
+    // Bytes of copied files taken from local chunks instead of the network
+    AtomicLong bytesReused = new AtomicLong();
+    volatile long migrationRate = DEFAULT_MIGRATION_RATE;
+    Migrator migrator;
+    // Copies made without holding the server lock: moves between tiers,
+    // compressions and expansions
+    ArrayList<PendingCopy> pendingCopies = new ArrayList<PendingCopy>();
+
+    // Directories whose idle files are stored compressed
+    HashSet<Path> compressedDirectories = new HashSet<Path>();
+    // Block indexes of compressed files, loaded whenever a handle is opened
+    // or the scrubber reaches the file. Which files are compressed is
+    // recorded by a marker for each, never guessed from the contents of the
+    // file.
+    HashMap<Path, CompressedFile> compressedFiles = new HashMap<Path, CompressedFile>();
+    long compressions = 0;
+
+    // Limits on reads and writes, or null when unlimited
+    volatile TokenBucket bandwidthLimit = null;
+    volatile TokenBucket operationLimit = null;
+    // Reads and writes that had to wait, and the total time they waited
+    AtomicLong throttledOperations = new AtomicLong();
+    AtomicLong throttledNanos = new AtomicLong();
+
+    /** Durability guarantee requested for a write. */
+    public enum Durability
+    {
+        /** The data may be held in the server's write-back buffer until the
+            file is next flushed, synced, read, or closed. */
+        BUFFERED,
+        /** The data has been handed to the local operating system. */
+        FLUSHED,
+        /** The data has been forced to the local disk. */
+        SYNCED
+    }
+
+    /* Copy of a file being made without holding the server lock. */
+    private static class PendingCopy
+    {
+        final Path file;
+        // Set when the file is written, replaced or deleted meanwhile, in
+        // which case the copy is abandoned
+        boolean changed = false;
+
+        PendingCopy(Path file) {
+            this.file = file;
+        }
+    }
 
     /* Subclass of our RMI Skeleton class to generate Storage and Command Skeleton */
     private class SubSkeleton<T> extends Skeleton<T>
@@ -45,6 +154,68 @@ public class StorageServer implements Storage, Command
             this.isStopped = true;
         }
     }
+    /* Background thread that walks the root directory and verifies every
+       block against its checksum, pausing between blocks so that its reads
+       stay under scrubRate.
+     */
+    private class Scrubber extends Thread
+    {
+        Scrubber() {
+            super("StorageServer scrubber");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while(!isInterrupted()) {
+                    for(Path file: listAll()) {
+                        long block = 0;
+                        int bytes;
+                        while((bytes = scrubBlock(file, block++)) > 0) {
+                            Thread.sleep(Math.max(1, bytes * 1000L / scrubRate));
+                        }
+                        scrubbed(file);
+                    }
+                    Thread.sleep(SCRUB_INTERVAL);
+                }
+            }
+            catch(InterruptedException e) {
+                // Server is stopping
+            }
+            catch(FileNotFoundException e) {
+                // Root directory is gone; nothing left to scrub
+            }
+        }
+    }
+
+    /* Background thread that moves frequently used files to faster tiers and
+       idle files to slower ones, and compresses idle files in directories
+       where compression is enabled.
+     */
+    private class Migrator extends Thread
+    {
+        Migrator() {
+            super("StorageServer migrator");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while(!isInterrupted()) {
+                    Thread.sleep(MIGRATION_INTERVAL);
+                    migrate();
+                }
+            }
+            catch(InterruptedException e) {
+                // Server is stopping
+            }
+        }
+    }
+
     /** Creates a storage server, given a directory on the local filesystem, and
         ports to use for the client and command interfaces.
 
@@ -61,29 +232,65 @@ public class StorageServer implements Storage, Command
         @throws NullPointerException If <code>root</code> is <code>null</code>.
     */
     public StorageServer(File root, int client_port, int command_port)
+    {
+        this(new File[] {root}, client_port, command_port);
+    }
+
+    /** Creates a storage server that keeps its files in several tiers of local
+        directories, such as a small fast disk and a large slow one.
+
+        <p>
+        Clients see the union of the tiers. New files are created in the first
+        tier. While the server runs, files that are read or written often are
+        moved to faster tiers, and files that are not used are moved to slower
+        ones. Anything already in a directory named
+        <code>PRIVATE_DIRECTORY</code> at the top of a tier is taken to be the
+        server's own, and is not served.
+
+        @param tiers Directories on the local filesystem, fastest first.
+        @param client_port Port to use for the client interface, or zero if the
+                           system should decide the port.
+        @param command_port Port to use for the command interface, or zero if
+                            the system should decide the port.
+        @throws NullPointerException If <code>tiers</code> or any of its
+                                     elements is <code>null</code>.
+        @throws IllegalArgumentException If <code>tiers</code> is empty.
+     */
+    public StorageServer(File[] tiers, int client_port, int command_port)
     {
 
-        if(root == null) {
-            throw new NullPointerException("Root cannot be null");
+        if(tiers.length == 0) {
+            throw new IllegalArgumentException("At least one root is required");
+        }
+        this.tiers = new File[tiers.length];
+        for(int i=0; i<tiers.length; i++) {
+            if(tiers[i] == null) {
+                throw new NullPointerException("Root cannot be null");
+            }
+            // Get the full file name of this root directory/file
+            this.tiers[i] = tiers[i].getAbsoluteFile();
         }
-        // Get the full file name of this root directory/file
-        this.root = root.getAbsoluteFile();
+        this.root = this.tiers[0];
+        this.tierHits = new long[tiers.length];
+        this.snapshots = new Snapshots(snapshotArea(this.root));
+        this.checksums = new BlockChecksums(
+            new File(new File(this.root, PRIVATE_DIRECTORY), "checksums"));
 
         // Initialize Storage Skeleton for client
         if(client_port == 0) {
-            storageSubSkeleton = new SubSkeleton<Storage>(Storage.class, this, this);
+            storageSubSkeleton = new SubSkeleton<StorageTransfer>(StorageTransfer.class, this, this);
         }
         else {
-            storageSubSkeleton = new SubSkeleton<Storage>(Storage.class, this, this,
+            storageSubSkeleton = new SubSkeleton<StorageTransfer>(StorageTransfer.class, this, this,
                     new InetSocketAddress(client_port));
         }
 
         // Initialize Command server for Naming server
         if(command_port == 0) {
-            commandSubSkeleton = new SubSkeleton<Command>(Command.class, this, this);
+            commandSubSkeleton = new SubSkeleton<StorageControl>(StorageControl.class, this, this);
         }
         else {
-            commandSubSkeleton = new SubSkeleton<Command>(Command.class, this, this,
+            commandSubSkeleton = new SubSkeleton<StorageControl>(StorageControl.class, this, this,
                     new InetSocketAddress(command_port));
         }
 
@@ -129,20 +336,176 @@ public class StorageServer implements Storage, Command
     public synchronized void start(String hostname, Registration naming_server)
         throws RMIException, UnknownHostException, FileNotFoundException
     {
-        if(root.exists()== false || root.isDirectory() == false) {
-            throw new FileNotFoundException("root does not exist/ root is not a directory");
+        for(File tier: tiers) {
+            if(tier.exists()== false || tier.isDirectory() == false) {
+                throw new FileNotFoundException("root does not exist/ root is not a directory");
+            }
+            // Partial copies left behind if the server stopped mid-migration
+            removeMigrationLeftovers(tier);
+            // Files kept for snapshots taken before the server stopped
+            File area = snapshotArea(tier);
+            if(area.exists()) {
+                deleteRecursive(area);
+            }
+        }
+        removeStaleMarkers();
+        checksums.removeStale(file -> locate(file).isFile());
+        // The naming server learns the size of every file from its first
+        // call to sizeChanges
+        for(Path file: listAll()) {
+            sizeLog.changed(file);
         }
         storageSubSkeleton.start();
         commandSubSkeleton.start();
-        Storage stubOfStorage = Stub.create(Storage.class, storageSubSkeleton, hostname);
-        Command stubOfCommand = Stub.create(Command.class, commandSubSkeleton, hostname);
+        try {
+            dataAddress = new InetSocketAddress(
+                hostname, dataServer.start(new InetSocketAddress(0)));
+        }
+        catch(IOException e) {
+            throw new RMIException("Data transport could not be started", e);
+        }
+        Storage stubOfStorage = Stub.create(StorageTransfer.class, storageSubSkeleton, hostname);
+        Command stubOfCommand = Stub.create(StorageControl.class, commandSubSkeleton, hostname);
 
         //Register
-        Path[] pathToDelete = naming_server.register(stubOfStorage, stubOfCommand, Path.list(root));
+        Path[] pathToDelete = naming_server.register(stubOfStorage, stubOfCommand, listAll());
         for(Path p: pathToDelete){
             delete(p);
         }
-        removeEmptyDirectories(root);
+        for(File tier: tiers) {
+            removeEmptyDirectories(tier);
+        }
+
+        scrubber = new Scrubber();
+        scrubber.start();
+        migrator = new Migrator();
+        migrator.start();
+    }
+
+    /* Lists the files in every tier. */
+    private Path[] listAll() throws FileNotFoundException
+    {
+        if(tiers.length == 1) {
+            return listTier(root);
+        }
+        LinkedHashSet<Path> all = new LinkedHashSet<Path>();
+        for(File tier: tiers) {
+            all.addAll(Arrays.asList(listTier(tier)));
+        }
+        return all.toArray(new Path[all.size()]);
+    }
+
+    /* Lists the files in one tier, leaving out the server's own files. */
+    private static Path[] listTier(File tier) throws FileNotFoundException
+    {
+        ArrayList<Path> files = new ArrayList<Path>();
+        for(Path file: Path.list(tier)) {
+            if(!file.isSubpath(PRIVATE_PATH)) {
+                files.add(file);
+            }
+        }
+        return files.toArray(new Path[files.size()]);
+    }
+
+    /* Returns the marker recording that a file is stored compressed. Markers
+       live in the first tier whatever tier holds the file, and hold the
+       length of the compressed file, which differs from the length of the
+       plain one, followed by the length of the file uncompressed.
+     */
+    private File compressedMarker(Path file)
+    {
+        return file.toFile(new File(new File(root, PRIVATE_DIRECTORY), "compressed"));
+    }
+
+    /* Returns the compressed length recorded in a marker, or -1 if it cannot
+       be read.
+     */
+    private static long readMarker(File marker)
+    {
+        long[] lengths = readMarkerLengths(marker);
+        return lengths == null ? -1 : lengths[0];
+    }
+
+    /* Returns the compressed and uncompressed lengths recorded in a marker,
+       or null if it cannot be read.
+     */
+    private static long[] readMarkerLengths(File marker)
+    {
+        try(DataInputStream in = new DataInputStream(new FileInputStream(marker))) {
+            return new long[] {in.readLong(), in.readLong()};
+        }
+        catch(IOException e) {
+            return null;
+        }
+    }
+
+    /* Records that a file is about to be stored compressed. */
+    private void writeMarker(Path file, long length, long uncompressed) throws IOException
+    {
+        File marker = compressedMarker(file);
+        marker.getParentFile().mkdirs();
+        try(FileOutputStream out = new FileOutputStream(marker)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(length);
+            data.writeLong(uncompressed);
+            out.getFD().sync();
+        }
+    }
+
+    /* Removes the markers of a path and of everything below it. */
+    private void removeMarkers(Path path)
+    {
+        File marker = compressedMarker(path);
+        if(marker.isDirectory()) {
+            deleteRecursive(marker);
+        }
+        else {
+            marker.delete();
+        }
+    }
+
+    /* Removes markers that no longer match their file, left behind if the
+       server stopped while compressing or expanding a file.
+     */
+    private void removeStaleMarkers()
+    {
+        File markers = compressedMarker(new Path());
+        if(!markers.isDirectory()) {
+            return;
+        }
+        try {
+            for(Path file: Path.list(markers)) {
+                File local = locate(file);
+                if(!local.isFile() || readMarker(file.toFile(markers)) != local.length()) {
+                    file.toFile(markers).delete();
+                }
+            }
+        }
+        catch(FileNotFoundException e) {
+            // Nothing to remove
+        }
+    }
+
+    /* Returns the directory of a tier where files are kept for snapshots. */
+    private static File snapshotArea(File tier)
+    {
+        return new File(new File(tier, PRIVATE_DIRECTORY), "snapshots");
+    }
+
+    private void removeMigrationLeftovers(File directory)
+    {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File f: files) {
+            if(f.isDirectory()) {
+                removeMigrationLeftovers(f);
+            }
+            else if(f.getName().endsWith(MIGRATING_SUFFIX)) {
+                f.delete();
+            }
+        }
     }
     private void removeEmptyDirectories(File directory) {
 
@@ -172,6 +535,156 @@ public class StorageServer implements Storage, Command
     {
         storageSubSkeleton.stop();
         commandSubSkeleton.stop();
+        dataServer.stop();
+        if(scrubber != null) {
+            scrubber.interrupt();
+        }
+        if(migrator != null) {
+            migrator.interrupt();
+        }
+        closeAllFiles();
+        synchronized(this) {
+            // Snapshots do not survive a restart
+            snapshots.releaseAll();
+        }
+    }
+
+    /** Sets the cap on the background scrubber's disk reads.
+
+        @param bytesPerSecond Maximum scrub rate, in bytes per second.
+        @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setScrubRate(long bytesPerSecond)
+    {
+        if(bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Scrub rate must be positive");
+        }
+        scrubRate = bytesPerSecond;
+    }
+
+    /** Sets the cap on the disk copies made to move files between tiers.
+
+        @param bytesPerSecond Maximum migration rate, in bytes per second.
+        @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setMigrationRate(long bytesPerSecond)
+    {
+        if(bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Migration rate must be positive");
+        }
+        migrationRate = bytesPerSecond;
+    }
+
+    /** Limits the rate of data read from and written to this server.
+
+        <p>
+        Short bursts of up to one second's worth of data are let through at
+        once. Calls beyond the limit wait before touching the disk, without
+        holding any lock.
+
+        @param bytesPerSecond Maximum rate, in bytes per second, or zero to
+                              remove the limit.
+        @throws IllegalArgumentException If the rate is negative.
+     */
+    public void setBandwidthLimit(long bytesPerSecond)
+    {
+        if(bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        bandwidthLimit = bytesPerSecond == 0 ? null : new TokenBucket(bytesPerSecond);
+    }
+
+    /** Limits the rate of read and write calls on this server.
+
+        @param operationsPerSecond Maximum rate, in calls per second, or zero to
+                                   remove the limit.
+        @throws IllegalArgumentException If the rate is negative.
+     */
+    public void setOperationLimit(long operationsPerSecond)
+    {
+        if(operationsPerSecond < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        operationLimit = operationsPerSecond == 0 ? null : new TokenBucket(operationsPerSecond);
+    }
+
+    /** Returns the number of reads and writes delayed by a limit. */
+    public long throttledOperations()
+    {
+        return throttledOperations.get();
+    }
+
+    /** Returns the total time reads and writes were delayed by limits, in
+        nanoseconds.
+     */
+    public long throttledNanos()
+    {
+        return throttledNanos.get();
+    }
+
+    /** Enables or disables compression of the files below a directory.
+
+        <p>
+        Files below the directory that go unused for a whole migration pass
+        are rewritten in compressed form, one Deflate block per 64 KiB, with a
+        block index so that reads at any offset only decompress the blocks
+        they cover. Compression is transparent to clients. A compressed file
+        is expanded back to plain form the first time it is written.
+        Disabling compression leaves already compressed files as they are.
+
+        <p>
+        Packed reads of files below the directory, made by clients and by
+        other storage servers copying the files, are compressed on the wire
+        as well, whether or not the files are compressed at rest yet.
+
+        @param directory Path to the directory.
+        @param enabled Whether idle files below the directory are compressed.
+     */
+    public synchronized void setCompression(Path directory, boolean enabled)
+    {
+        if(directory == null) {
+            throw new NullPointerException("Path cannot be null");
+        }
+        if(enabled) {
+            compressedDirectories.add(directory);
+        }
+        else {
+            compressedDirectories.remove(directory);
+        }
+    }
+
+    /** Returns the number of files rewritten in compressed form. */
+    public synchronized long compressions()
+    {
+        return compressions;
+    }
+
+    /** Returns the number of reads and writes served from each tier, fastest
+        tier first.
+     */
+    public synchronized long[] tierHits()
+    {
+        return tierHits.clone();
+    }
+
+    /** Returns the number of files moved to a faster tier. */
+    public synchronized long promotions()
+    {
+        return promotions;
+    }
+
+    /** Returns the number of files moved to a slower tier. */
+    public synchronized long demotions()
+    {
+        return demotions;
+    }
+
+    /** Returns the number of bytes of files copied from other storage servers
+        that were found on this server and not read over the network.
+     */
+    public long bytesReused()
+    {
+        return bytesReused.get();
     }
 
     /** Called when the storage server has shut down.
@@ -184,22 +697,61 @@ public class StorageServer implements Storage, Command
 
     }
 
+    /** Called when a block of a local file does not match its checksum, either
+        on a read or during background scrubbing.
+
+        <p>
+        Files are stored on a single storage server, so there is no replica to
+        repair the block from. This method should be overridden for error
+        reporting. The default implementation does nothing.
+
+        @param file Path to the file containing the corrupt block.
+        @param block Index of the corrupt block within the file.
+     */
+    protected void corruptBlock(Path file, long block)
+    {
+    }
+
     // The following methods are documented in Storage.java.
     @Override
     public synchronized long size(Path file) throws FileNotFoundException
     {
-        File tempFile = file.toFile(this.root);
+        File tempFile = locate(file);
         if(tempFile.exists() == false) {
             throw new FileNotFoundException("File does not exist");
         }
         if(tempFile.isDirectory() == true) {
             throw new FileNotFoundException("Path directs to a directory, not a file");
         }
+        OpenFile open = openFiles.get(file);
+        if(open != null) {
+            CompressedFile index = compressedFiles.get(file);
+            try {
+                // Includes bytes still in the write-back buffer
+                return index != null ? index.length : open.length();
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+        }
+        // Without a handle, so that sweeps over many files do not evict the
+        // handles of files in use
+        long[] marker = readMarkerLengths(compressedMarker(file));
+        if(marker != null && marker[0] == tempFile.length()) {
+            return marker[1];
+        }
         return tempFile.length();
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+        throttle(Math.max(0, length));
+        return readLocal(file, offset, length);
+    }
+
+    private synchronized byte[] readLocal(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
         if(length<0){
@@ -209,7 +761,8 @@ public class StorageServer implements Storage, Command
             throw new IndexOutOfBoundsException("Offset cannot be negative");
         }
 
-        File tempFile = file.toFile(this.root);
+        int tier = tierOf(file);
+        File tempFile = file.toFile(tiers[tier]);
         if(tempFile.isDirectory()) {
             throw new FileNotFoundException("The given path belongs to a directory");
         }
@@ -219,7 +772,10 @@ public class StorageServer implements Storage, Command
         if(tempFile.canRead() == false) {
             throw new FileNotFoundException("File cannot be read by the server");
         }
-        if(length + offset > tempFile.length()) {
+        OpenFile open = openFile(file, tempFile, false);
+        CompressedFile index = compressedFiles.get(file);
+        recordAccess(file, tier);
+        if(length + offset > (index != null ? index.length : open.length())) {
             throw new IndexOutOfBoundsException("Length + Offset exceed file length");
         }
         if(length > Integer.MAX_VALUE || offset > Integer.MAX_VALUE) {
@@ -231,18 +787,64 @@ public class StorageServer implements Storage, Command
         http://www.tutorialspoint.com/java/io/randomaccessfile_readfully_byte_len.htm
         https://examples.javacodegeeks.com/core-java/io/randomaccessfile/java-randomaccessfile-example/
         * */
-        RandomAccessFile f = new RandomAccessFile(tempFile, "r");
-        byte[] readArray = new byte[length];
-        f.readFully(readArray,(int)offset,(int)length);
-        f.close();
-        return readArray;
+        try {
+            if(index != null) {
+                // Compressed blocks carry their own checksums
+                return index.read(file, open, offset, length);
+            }
+            return checksums.read(file, open, offset, length);
+        }
+        catch(CorruptBlockException e) {
+            corruptBlock(e.file(), e.block());
+            throw e;
+        }
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
-        File tempFile = file.toFile(root);
+        write(file, offset, data, Durability.FLUSHED);
+    }
+
+    /** Writes data to a file with the given durability.
+
+        <p>
+        With <code>Durability.BUFFERED</code>, small sequential writes are
+        coalesced in a per-file write-back buffer and reach the local file on
+        the next flush, sync, read, or when the file is closed. Callers that
+        need the data to survive a crash of the storage server must use
+        <code>Durability.SYNCED</code> or call <code>sync</code>.
+
+        @param file Path to the file to be written.
+        @param offset Offset into the file where data is to be written.
+        @param data Array of bytes to be written.
+        @param durability Guarantee required before this method returns.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws IOException If the file write cannot be completed on the
+                            server.
+     */
+    public void write(Path file, long offset, byte[] data, Durability durability)
+        throws FileNotFoundException, IOException
+    {
+        throttle(data.length);
+        while(!writeLocal(file, offset, data, durability)) {
+            expandFile(file);
+        }
+    }
+
+    /* Returns false, without writing, if the file is stored compressed and
+       must first be expanded.
+     */
+    private synchronized boolean writeLocal(Path file, long offset, byte[] data,
+                                            Durability durability)
+        throws FileNotFoundException, IOException
+    {
+        awaitFence(file);
+        int tier = tierOf(file);
+        File tempFile = file.toFile(tiers[tier]);
         if(tempFile.exists() == false) {
             throw new FileNotFoundException("File does not exist on the server");
         }
@@ -258,63 +860,883 @@ public class StorageServer implements Storage, Command
         /*
         Reference: http://tutorials.jenkov.com/java-io/randomaccessfile.html
         * */
-        RandomAccessFile f = new RandomAccessFile(tempFile, "rw");
-        f.seek(offset);
-        f.write(data);
-        f.close();
-    }
-
-    // The following methods are documented in Command.java.
-    @Override
-    public synchronized boolean create(Path file)
-    {
-        if(file.isRoot()) {
-            // Since we cannot create a root directory
+        OpenFile open = openFile(file, tempFile, true);
+        if(compressedFiles.get(file) != null) {
             return false;
         }
-        Path parentPath = file.parent();
-        File parentFile = parentPath.toFile(root);
-
-        parentFile.mkdirs();
-        // Creating file by appending it to root
-        File tempFile = file.toFile(root);
-
-        /*
-        Reference:
-        https://docs.oracle.com/javase/7/docs/api/java/io/File.html#createNewFile()
-        * */
+        recordAccess(file, tier);
+        changed(file);
+        snapshots.beforeWrite(file, Snapshots.contents(file, open, null), offset, data.length);
         try {
-            return tempFile.createNewFile();
+            checksums.write(file, open, offset, data);
         }
-        catch(IOException io) {
-            io.printStackTrace();
+        catch(CorruptBlockException e) {
+            corruptBlock(e.file(), e.block());
+            throw e;
         }
-        return false;
+        try {
+            open.write(offset, data, durability == Durability.BUFFERED);
+        }
+        catch(IOException e) {
+            checksums.forget(file, offset, data.length);
+            throw e;
+        }
+        // Also when the size is unchanged, as the change is the file's
+        // new version
+        sizeLog.changed(file);
+        if(durability == Durability.SYNCED) {
+            open.sync();
+        }
+        return true;
     }
 
-    @Override
-    public synchronized boolean delete(Path path)
+    /** Appends data to the end of a file.
+
+        @param file Path to the file to be appended to.
+        @param data Array of bytes to be appended.
+        @param durability Guarantee required before this method returns.
+        @return The offset at which the data was written.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file write cannot be completed on the
+                            server.
+     */
+    public long append(Path file, byte[] data, Durability durability)
+        throws FileNotFoundException, IOException
     {
+        throttle(data.length);
+        long offset;
+        while((offset = appendLocal(file, data, durability)) < 0) {
+            expandFile(file);
+        }
+        return offset;
+    }
 
-        if(path.isRoot()) {
-            // Since root cannot be deleted
-            return false;
+    /* Returns -1, without writing, if the file is stored compressed and must
+       first be expanded.
+     */
+    private synchronized long appendLocal(Path file, byte[] data, Durability durability)
+        throws FileNotFoundException, IOException
+    {
+        awaitFence(file);
+        File tempFile = locate(file);
+        if(tempFile.exists() == false || tempFile.isDirectory()) {
+            throw new FileNotFoundException("File does not exist on the server");
         }
-        File tempFile = path.toFile(root);
-        if(tempFile.exists() == false) {
-            // File does not exist and cannot be deleted
+        OpenFile open = openFile(file, tempFile, true);
+        if(compressedFiles.get(file) != null) {
+            return -1;
+        }
+        long offset = open.length();
+        writeLocal(file, offset, data, durability);
+        return offset;
+    }
+
+    /** Takes a snapshot of a file or directory tree.
+
+        <p>
+        This takes constant time. Afterwards, the files in the tree can be read
+        as they were at this moment with <code>readSnapshot</code>, while
+        writers keep changing them. Only the blocks changed after the snapshot
+        are copied, and files deleted after it are moved aside rather than
+        copied. Both are kept on the local disk, below
+        <code>PRIVATE_DIRECTORY</code>, until the snapshot is released.
+
+        @param path Path to the file or directory.
+        @return The identifier of the snapshot.
+     */
+    @Override
+    public synchronized long snapshot(Path path)
+    {
+        if(path == null) {
+            throw new NullPointerException("Path cannot be null");
+        }
+        return snapshots.create(path);
+    }
+
+    @Override
+    public synchronized boolean releaseSnapshot(long id)
+    {
+        return snapshots.release(id);
+    }
+
+    // The following methods are documented in StorageTransfer.java.
+    @Override
+    public synchronized InetSocketAddress dataAddress()
+    {
+        return dataAddress;
+    }
+
+    @Override
+    public byte[] readPacked(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+        if(length > DataTransport.MAX_DATA) {
+            throw new IllegalArgumentException("Read is too large to pack");
+        }
+        byte[] data = read(file, offset, length);
+        boolean compress;
+        synchronized(this) {
+            compress = inCompressedDirectory(file);
+        }
+        // Compressed without holding the lock
+        return DataTransport.pack(data, compress);
+    }
+
+    @Override
+    public void writePacked(Path file, long offset, byte[] packed)
+        throws FileNotFoundException, IOException
+    {
+        write(file, offset, DataTransport.unpack(packed));
+    }
+
+    @Override
+    public synchronized long sizeSnapshot(long id, Path file)
+        throws FileNotFoundException, IOException
+    {
+        return snapshots.length(id, file, liveContents(file));
+    }
+
+    @Override
+    public synchronized byte[] readSnapshot(long id, Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+        return snapshots.read(id, file, liveContents(file), offset, length);
+    }
+
+    /* Returns the current contents of a file for reading a snapshot, or null
+       if the file no longer exists.
+     */
+    private Snapshots.Contents liveContents(Path file) throws IOException
+    {
+        File tempFile = locate(file);
+        if(!tempFile.isFile() || file.isSubpath(PRIVATE_PATH)) {
+            return null;
+        }
+        return Snapshots.contents(file, openFile(file, tempFile, false),
+                                  compressedFiles.get(file));
+    }
+
+    /** Hands any buffered writes to a file to the local operating system.
+
+        @param file Path to the file to be flushed.
+        @throws IOException If the buffered data cannot be written.
+     */
+    public synchronized void flush(Path file) throws IOException
+    {
+        OpenFile open = openFiles.get(file);
+        if(open != null) {
+            open.flush();
+        }
+    }
+
+    /** Forces all writes to a file, buffered or not, to the local disk.
+
+        @param file Path to the file to be synced.
+        @throws IOException If the data cannot be forced to disk.
+     */
+    public synchronized void sync(Path file) throws IOException
+    {
+        OpenFile open = openFiles.get(file);
+        if(open != null) {
+            open.sync();
+        }
+    }
+
+    /* Returns the open handle for a file, opening it if necessary. When too
+       many files are open, the least recently used one is flushed and closed.
+     */
+    private OpenFile openFile(Path file, File tempFile, boolean writable)
+        throws IOException
+    {
+        OpenFile open = openFiles.get(file);
+        if(open != null) {
+            return open;
+        }
+        if(openFiles.size() >= MAX_OPEN_FILES) {
+            evictOpenFile();
+        }
+        open = new OpenFile(tempFile, writable);
+        try {
+            CompressedFile index = null;
+            File marker = compressedMarker(file);
+            if(marker.isFile()) {
+                if(readMarker(marker) != open.length()) {
+                    // The file was expanded or replaced before the marker
+                    // could be removed
+                    marker.delete();
+                }
+                else if((index = CompressedFile.load(open)) == null) {
+                    // Compressed, but the header is damaged
+                    corruptBlock(file, 0);
+                    throw new CorruptBlockException(file, 0);
+                }
+            }
+            if(index != null) {
+                compressedFiles.put(file, index);
+            }
+            else {
+                compressedFiles.remove(file);
+            }
+        }
+        catch(IOException e) {
+            open.discard();
+            throw e;
+        }
+        openFiles.put(file, open);
+        return open;
+    }
+
+    /* Closes the least recently used handle whose buffered writes can be
+       flushed. A handle that fails to flush is kept, so its acknowledged
+       writes are not lost and the error reaches the next caller of that file.
+     */
+    private void evictOpenFile()
+    {
+        Iterator<Map.Entry<Path, OpenFile>> it = openFiles.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Path, OpenFile> entry = it.next();
+            OpenFile candidate = entry.getValue();
+            try {
+                candidate.flush();
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+                continue;
+            }
+            it.remove();
+            try {
+                checksums.save(entry.getKey(), candidate);
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+            try {
+                candidate.close();
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+            return;
+        }
+    }
+
+    /* Expands a compressed file to plain form. The copy is made without
+       holding the server lock, so other calls are not held up, and readers
+       keep reading the compressed form meanwhile. If the file changes
+       first, the copy is abandoned; callers check again and retry.
+     */
+    private void expandFile(Path file) throws IOException
+    {
+        File source;
+        File partial;
+        CompressedFile index;
+        OpenFile in;
+        PendingCopy copy;
+        synchronized(this) {
+            source = locate(file);
+            if(!source.isFile()) {
+                throw new FileNotFoundException("File does not exist on the server");
+            }
+            openFile(file, source, false);
+            index = compressedFiles.get(file);
+            if(index == null) {
+                return;
+            }
+            partial = partialFile(source);
+            // Compressed files are never written in place, so a private
+            // handle can read this one without the lock
+            in = new OpenFile(source, false);
+            copy = beginCopy(file);
+        }
+
+        try {
+            try {
+                index.expand(file, in, partial);
+            }
+            catch(CorruptBlockException e) {
+                corruptBlock(e.file(), e.block());
+                throw e;
+            }
+            synchronized(this) {
+                if(copy.changed) {
+                    return;
+                }
+                if(!partial.renameTo(source)) {
+                    throw new IOException("Compressed file cannot be expanded");
+                }
+                OpenFile open = openFiles.remove(file);
+                if(open != null) {
+                    open.discard();
+                }
+                compressedFiles.remove(file);
+                compressedMarker(file).delete();
+                checksums.remove(file);
+                int[] crcs = index.checksums();
+                if(crcs != null) {
+                    checksums.install(file, source.length(), crcs);
+                }
+                changed(file);
+            }
+        }
+        finally {
+            in.discard();
+            synchronized(this) {
+                endCopy(copy);
+                partial.delete();
+            }
+        }
+    }
+
+    /* Records a copy of a file about to be made without the server lock. */
+    private PendingCopy beginCopy(Path file)
+    {
+        PendingCopy copy = new PendingCopy(file);
+        pendingCopies.add(copy);
+        return copy;
+    }
+
+    private void endCopy(PendingCopy copy)
+    {
+        pendingCopies.remove(copy);
+    }
+
+    /* Marks the copies in progress of a path, and of everything below it, as
+       out of date.
+     */
+    private void changed(Path path)
+    {
+        for(PendingCopy copy: pendingCopies) {
+            if(copy.file.isSubpath(path)) {
+                copy.changed = true;
+            }
+        }
+    }
+
+    /* Drops the handles, and any buffered writes, of the given path and
+       everything below it.
+     */
+    private void discardFiles(Path path)
+    {
+        Iterator<Map.Entry<Path, OpenFile>> it = openFiles.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Path, OpenFile> entry = it.next();
+            if(entry.getKey().isSubpath(path)) {
+                entry.getValue().discard();
+                it.remove();
+            }
+        }
+    }
+
+    /* Verifies one block of a file for the scrubber. Returns the number of
+       bytes verified, or zero once past the end of the file.
+     */
+    private synchronized int scrubBlock(Path file, long block)
+    {
+        File tempFile = locate(file);
+        if(!tempFile.isFile()) {
+            return 0;
+        }
+        // Use a private handle so scrubbing does not evict foreground files
+        OpenFile open = openFiles.get(file);
+        boolean temporary = open == null;
+        try {
+            if(temporary) {
+                open = new OpenFile(tempFile, false);
+            }
+            CompressedFile index;
+            try {
+                index = temporary ? scrubIndex(file, tempFile, open) : compressedFiles.get(file);
+            }
+            catch(CorruptBlockException e) {
+                // The header is damaged, so no block can be found
+                if(block == 0) {
+                    corruptBlock(file, 0);
+                }
+                return 0;
+            }
+            if(index != null) {
+                return index.verify(file, open, block);
+            }
+            return checksums.scrub(file, open, block);
+        }
+        catch(CorruptBlockException e) {
+            corruptBlock(file, block);
+            return BlockChecksums.BLOCK_SIZE;
+        }
+        catch(IOException e) {
+            return 0;
+        }
+        finally {
+            if(temporary && open != null) {
+                open.discard();
+            }
+        }
+    }
+
+    /* Saves the checksums the scrubber recorded or checked for a file, once
+       it is done with it, unless a client is using the file.
+     */
+    private synchronized void scrubbed(Path file)
+    {
+        if(openFiles.containsKey(file)) {
+            return;
+        }
+        try {
+            checksums.save(file, null);
+        }
+        catch(IOException e) {
+            // Kept in memory, and saved with the next pass
+        }
+    }
+
+    /* Returns the block index of a file the scrubber reads through its own
+       handle, or null if the file is plain. Indexes loaded here are kept, so
+       that the scrubber does not read the index again for every block; an
+       index is only used while the file's marker matches it.
+     */
+    private CompressedFile scrubIndex(Path file, File tempFile, OpenFile open) throws IOException
+    {
+        if(readMarker(compressedMarker(file)) != tempFile.length()) {
+            return null;
+        }
+        CompressedFile index = compressedFiles.get(file);
+        if(index == null) {
+            index = CompressedFile.load(open);
+            if(index == null) {
+                throw new CorruptBlockException(file, 0);
+            }
+            compressedFiles.put(file, index);
+        }
+        return index;
+    }
+
+    /* Waits until the bandwidth and operation limits allow a read or write of
+       the given size.
+     */
+    private void throttle(long bytes) throws IOException
+    {
+        TokenBucket bandwidth = bandwidthLimit;
+        TokenBucket operations = operationLimit;
+        long wait = 0;
+        if(bandwidth != null) {
+            wait = bandwidth.take(bytes);
+        }
+        if(operations != null) {
+            wait = Math.max(wait, operations.take(1));
+        }
+        if(wait == 0) {
+            return;
+        }
+        throttledOperations.incrementAndGet();
+        throttledNanos.addAndGet(wait);
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /* Returns the index of the fastest tier holding a path. Paths held by no
+       tier belong to the fastest one.
+     */
+    private int tierOf(Path file)
+    {
+        for(int i=0; i<tiers.length; i++) {
+            if(file.toFile(tiers[i]).exists()) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /* Returns the local file for a path, in the fastest tier holding it. */
+    private File locate(Path file)
+    {
+        return file.toFile(tiers[tierOf(file)]);
+    }
+
+    private void recordAccess(Path file, int tier)
+    {
+        tierHits[tier]++;
+        accessCounts.merge(file, 1, Integer::sum);
+    }
+
+    private boolean inCompressedDirectory(Path file)
+    {
+        for(Path directory: compressedDirectories) {
+            if(file.isSubpath(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* One migration pass: moves every file accessed often since the previous
+       pass up one tier, and every file not accessed down one tier. Files not
+       accessed are then compressed if their directory asks for it.
+     */
+    private void migrate() throws InterruptedException
+    {
+        ArrayList<Path> idle = new ArrayList<Path>();
+        ArrayList<Path> moves = new ArrayList<Path>();
+        ArrayList<Integer> from = new ArrayList<Integer>();
+        ArrayList<Integer> to = new ArrayList<Integer>();
+        for(int t=0; t<tiers.length; t++) {
+            Path[] files;
+            try {
+                files = listTier(tiers[t]);
+            }
+            catch(FileNotFoundException e) {
+                continue;
+            }
+            synchronized(this) {
+                for(Path file: files) {
+                    int count = accessCounts.getOrDefault(file, 0);
+                    if(count == 0 && inCompressedDirectory(file)) {
+                        idle.add(file);
+                    }
+                    if(t > 0 && count >= PROMOTE_THRESHOLD) {
+                        moves.add(file);
+                        from.add(t);
+                        to.add(t - 1);
+                    }
+                    else if(t < tiers.length - 1 && count == 0) {
+                        moves.add(file);
+                        from.add(t);
+                        to.add(t + 1);
+                    }
+                }
+            }
+        }
+        synchronized(this) {
+            // Age the counts so that only recent accesses keep a file hot
+            accessCounts.replaceAll((file, count) -> count / 2);
+            accessCounts.values().removeIf(count -> count == 0);
+        }
+        for(int i=0; i<moves.size(); i++) {
+            moveFile(moves.get(i), from.get(i), to.get(i));
+        }
+        for(Path file: idle) {
+            compressFile(file);
+        }
+    }
+
+    /* Rewrites a file in compressed form, unless it already is. Like a move
+       between tiers, the copy is made without holding the server lock and is
+       abandoned if the file changes meanwhile.
+     */
+    private void compressFile(Path file) throws InterruptedException
+    {
+        File source;
+        File partial;
+        PendingCopy copy;
+        synchronized(this) {
+            source = locate(file);
+            if(!source.isFile()) {
+                return;
+            }
+            try {
+                OpenFile open = openFile(file, source, false);
+                if(compressedFiles.get(file) != null) {
+                    return;
+                }
+                open.flush();
+                partial = partialFile(source);
+            }
+            catch(IOException e) {
+                return;
+            }
+            copy = beginCopy(file);
+        }
+
+        try {
+            if(!CompressedFile.compress(source, partial, migrationRate)) {
+                return;
+            }
+            synchronized(this) {
+                if(copy.changed) {
+                    return;
+                }
+                // The marker comes first, so a crash never leaves a compressed
+                // file without one
+                writeMarker(file, partial.length(), source.length());
+                if(!partial.renameTo(source)) {
+                    compressedMarker(file).delete();
+                    return;
+                }
+                OpenFile open = openFiles.remove(file);
+                if(open != null) {
+                    open.discard();
+                }
+                compressedFiles.remove(file);
+                checksums.remove(file);
+                changed(file);
+                compressions++;
+            }
+        }
+        catch(IOException e) {
+            // Leave the file as it is
+        }
+        finally {
+            synchronized(this) {
+                endCopy(copy);
+                partial.delete();
+            }
+        }
+    }
+
+    /* Moves a file between tiers. The copy is made without holding the server
+       lock, so the file stays readable; it is abandoned if the file is written
+       or deleted in the meantime.
+     */
+    private void moveFile(Path file, int from, int to) throws InterruptedException
+    {
+        File source;
+        File target;
+        File partial;
+        PendingCopy copy;
+        synchronized(this) {
+            source = file.toFile(tiers[from]);
+            if(!source.isFile() || tierOf(file) != from) {
+                return;
+            }
+            OpenFile open = openFiles.get(file);
+            target = file.toFile(tiers[to]);
+            target.getParentFile().mkdirs();
+            try {
+                if(open != null) {
+                    open.flush();
+                }
+                partial = partialFile(target);
+            }
+            catch(IOException e) {
+                return;
+            }
+            copy = beginCopy(file);
+        }
+
+        try {
+            try(FileInputStream in = new FileInputStream(source);
+                FileOutputStream out = new FileOutputStream(partial)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    Thread.sleep(Math.max(1, n * 1000L / migrationRate));
+                }
+                out.getFD().sync();
+            }
+            synchronized(this) {
+                if(copy.changed || !partial.renameTo(target)) {
+                    return;
+                }
+                OpenFile open = openFiles.remove(file);
+                if(open != null) {
+                    open.discard();
+                }
+                source.delete();
+                changed(file);
+                if(to < from) {
+                    promotions++;
+                }
+                else {
+                    demotions++;
+                }
+            }
+        }
+        catch(IOException e) {
+            // Leave the file where it is
+        }
+        finally {
+            synchronized(this) {
+                endCopy(copy);
+                partial.delete();
+            }
+        }
+    }
+
+    /* Creates an empty partial copy next to a local file, under a name that
+       no other copy in progress uses.
+     */
+    private static File partialFile(File target) throws IOException
+    {
+        // The prefix must be at least three characters long
+        return File.createTempFile(target.getName() + ".copy.", MIGRATING_SUFFIX,
+                                   target.getParentFile());
+    }
+
+    private synchronized void closeAllFiles()
+    {
+        for(Map.Entry<Path, OpenFile> entry: openFiles.entrySet()) {
+            try {
+                checksums.save(entry.getKey(), entry.getValue());
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+            try {
+                entry.getValue().close();
+            }
+            catch(IOException io) {
+                io.printStackTrace();
+            }
+        }
+        openFiles.clear();
+        checksums.saveAll();
+    }
+
+    // The following methods are documented in Command.java.
+    @Override
+    public synchronized boolean create(Path file)
+    {
+        if(file.isRoot()) {
+            // Since we cannot create a root directory
             return false;
         }
-        if(tempFile.isFile()) {
-            return tempFile.delete();
+        if(file.isSubpath(PRIVATE_PATH)) {
+            return false;
+        }
+        if(locate(file).exists()) {
+            // Already present in one of the tiers
+            return false;
         }
-        boolean deleteSuccess = deleteRecursive(tempFile);
-        return deleteSuccess;
+        snapshots.beforeCreate(file);
+        Path parentPath = file.parent();
+        File parentFile = parentPath.toFile(root);
+
+        parentFile.mkdirs();
+        // Creating file by appending it to root
+        File tempFile = file.toFile(root);
+
+        /*
+        Reference:
+        https://docs.oracle.com/javase/7/docs/api/java/io/File.html#createNewFile()
+        * */
+        try {
+            if(tempFile.createNewFile()) {
+                sizeLog.changed(file);
+                return true;
+            }
+        }
+        catch(IOException io) {
+            io.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean delete(Path path)
+    {
+
+        if(path.isRoot()) {
+            // Since root cannot be deleted
+            return false;
+        }
+        if(path.isSubpath(PRIVATE_PATH)) {
+            return false;
+        }
+        changed(path);
+        boolean found = false;
+        boolean deleteSuccess = true;
+        for(File tier: tiers) {
+            File tempFile = path.toFile(tier);
+            if(tempFile.exists() == false) {
+                continue;
+            }
+            if(!found) {
+                if(!preserveForSnapshots(path)) {
+                    return false;
+                }
+                discardFiles(path);
+                checksums.remove(path);
+                sizeLog.removedBelow(path);
+                chunkIndex.remove(path);
+                if(fences.keySet().removeIf(p -> p.isSubpath(path))) {
+                    // Waiting writers find the file gone
+                    notifyAll();
+                }
+                removeMarkers(path);
+                compressedFiles.keySet().removeIf(p -> p.isSubpath(path));
+                found = true;
+            }
+            if(!tempFile.exists()) {
+                // Moved aside for a snapshot
+                continue;
+            }
+            if(tempFile.isFile()) {
+                deleteSuccess &= tempFile.delete();
+            }
+            else {
+                deleteSuccess &= deleteRecursive(tempFile);
+            }
+        }
+        // File does not exist and cannot be deleted
+        return found && deleteSuccess;
         /*
         TODO:
         Remove all the empty directories that are created after this delete operation
         * */
     }
+    /* Hands every file below a path that a snapshot still needs over to the
+       snapshots, before the path is deleted. Each file is renamed into the
+       snapshot area of its tier, so nothing is read or copied. Returns false
+       if a file could not be moved, in which case the delete must not go
+       ahead; files moved before the failure stay with the snapshots.
+     */
+    private boolean preserveForSnapshots(Path path)
+    {
+        if(snapshots.isEmpty()) {
+            return true;
+        }
+        LinkedHashSet<Path> files = new LinkedHashSet<Path>();
+        for(File tier: tiers) {
+            File tempFile = path.toFile(tier);
+            if(tempFile.isFile()) {
+                files.add(path);
+            }
+            else if(tempFile.isDirectory()) {
+                try {
+                    for(Path relative: Path.list(tempFile)) {
+                        Path file = path;
+                        for(String component: relative.components) {
+                            file = new Path(file, component);
+                        }
+                        files.add(file);
+                    }
+                }
+                catch(FileNotFoundException e) {
+                    return false;
+                }
+            }
+        }
+        for(Path file: files) {
+            if(!snapshots.needs(file)) {
+                continue;
+            }
+            File tempFile = locate(file);
+            File area = snapshotArea(tiers[tierOf(file)]);
+            File kept = snapshots.deletedName(area);
+            try {
+                OpenFile open = openFile(file, tempFile, false);
+                CompressedFile index = compressedFiles.get(file);
+                long length = Snapshots.contents(file, open, index).length();
+                open.flush();
+                area.mkdirs();
+                if(!tempFile.renameTo(kept)) {
+                    return false;
+                }
+                snapshots.deleted(file, length, kept, index != null);
+            }
+            catch(IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /*
     Reference:
     http://stackoverflow.com/questions/35745276/java-deleting-files-and-folder-of-parent-path-recursively
@@ -337,10 +1759,319 @@ public class StorageServer implements Storage, Command
         return success && filePath.delete();
     }
 
+    /* The remote file is read in chunks without holding the server lock, into
+       a partial file that replaces the local copy once complete. Chunks count
+       against the bandwidth limit like client reads and writes. When the
+       remote server lists the chunks of the file by content, the chunks this
+       server already holds, in an older copy of the file or in any other
+       file, are read from the local disk instead.
+     */
+    @Override
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        return copy(file, server, Long.MAX_VALUE);
+    }
+
+    // The following methods are documented in StorageControl.java.
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server, long bytesPerSecond)
         throws RMIException, FileNotFoundException, IOException
     {
-        throw new UnsupportedOperationException("not implemented");
+        if(bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        if(file == null || server == null) {
+            throw new NullPointerException("None of the arguments can be null");
+        }
+        if(file.isRoot()) {
+            throw new FileNotFoundException("Path directs to a directory, not a file");
+        }
+        if(file.isSubpath(PRIVATE_PATH)) {
+            throw new FileNotFoundException("Path is reserved by the storage server");
+        }
+        StorageTransfer.Chunk[] chunks = null;
+        long size;
+        if(server instanceof StorageTransfer) {
+            chunks = ((StorageTransfer)server).chunks(file);
+            size = chunks.length == 0 ? 0 : chunks[chunks.length - 1].offset
+                                             + chunks[chunks.length - 1].length;
+        }
+        else {
+            size = server.size(file);
+        }
+
+        File target;
+        File partial;
+        synchronized(this) {
+            if(locate(file).isDirectory()) {
+                throw new FileNotFoundException("Path directs to a directory, not a file");
+            }
+            target = file.toFile(root);
+            target.getParentFile().mkdirs();
+            partial = partialFile(target);
+        }
+
+        // Checksums of the blocks copied, so the copy is verified from its
+        // first read on
+        int[] crcs = new int[(int) ((size + BlockChecksums.BLOCK_SIZE - 1)
+                                    / BlockChecksums.BLOCK_SIZE)];
+        try {
+            try(FileOutputStream out = new FileOutputStream(partial)) {
+                CRC32C crc = new CRC32C();
+                long offset = 0;
+                int next = 0;
+                while(offset < size) {
+                    byte[] data = null;
+                    int n;
+                    if(chunks != null) {
+                        n = chunks[next].length;
+                        data = localChunk(chunks[next++]);
+                    }
+                    else {
+                        n = (int) Math.min(COPY_CHUNK, size - offset);
+                    }
+                    if(data == null) {
+                        throttle(n);
+                        // Packed reads save network on compressible files;
+                        // the rate cap applies to what crosses it
+                        int sent = n;
+                        if(server instanceof StorageTransfer) {
+                            byte[] packed = ((StorageTransfer)server).readPacked(file, offset, n);
+                            sent = packed.length;
+                            data = DataTransport.unpack(packed);
+                        }
+                        else {
+                            data = server.read(file, offset, n);
+                        }
+                        if(bytesPerSecond != Long.MAX_VALUE) {
+                            pace(sent, bytesPerSecond);
+                        }
+                    }
+                    else {
+                        bytesReused.addAndGet(n);
+                    }
+                    out.write(data);
+                    // Chunks need not start on a block, so the checksum of
+                    // each block is built up across them
+                    for(int from = 0; from < n; ) {
+                        long position = offset + from;
+                        int part = (int) Math.min(n - from, BlockChecksums.BLOCK_SIZE
+                                                  - position % BlockChecksums.BLOCK_SIZE);
+                        crc.update(data, from, part);
+                        from += part;
+                        if((offset + from) % BlockChecksums.BLOCK_SIZE == 0
+                           || offset + from == size) {
+                            crcs[(int) (position / BlockChecksums.BLOCK_SIZE)] =
+                                (int) crc.getValue();
+                            crc.reset();
+                        }
+                    }
+                    offset += n;
+                }
+                out.getFD().sync();
+            }
+            synchronized(this) {
+                // Replaces the local copy, as a delete followed by a create would
+                if(locate(file).exists()) {
+                    if(!preserveForSnapshots(file)) {
+                        return false;
+                    }
+                    discardFiles(file);
+                    checksums.remove(file);
+                    for(File tier: tiers) {
+                        file.toFile(tier).delete();
+                    }
+                }
+                else {
+                    snapshots.beforeCreate(file);
+                }
+                compressedFiles.remove(file);
+                compressedMarker(file).delete();
+                changed(file);
+                if(!partial.renameTo(target)) {
+                    throw new IOException("Copied file could not be stored");
+                }
+                checksums.install(file, size, crcs);
+                sizeLog.changed(file);
+                if(chunks != null) {
+                    chunkIndex.add(file, sizeLog.version(file), chunks);
+                }
+                return true;
+            }
+        }
+        finally {
+            partial.delete();
+        }
+    }
+
+    /* Returns the data of a chunk if this server holds it, or null. The data
+       is checked against the hash, since the index does not follow changes
+       to files.
+     */
+    private synchronized byte[] localChunk(StorageTransfer.Chunk chunk)
+    {
+        ChunkIndex.Location location = chunkIndex.find(chunk.hash);
+        if(location == null || location.length != chunk.length) {
+            return null;
+        }
+        try {
+            byte[] data = readLocal(location.file, location.offset, location.length);
+            return Arrays.equals(Chunker.hash(data), chunk.hash) ? data : null;
+        }
+        catch(IOException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // The following methods are documented in StorageTransfer.java.
+    @Override
+    public StorageTransfer.Chunk[] chunks(Path file)
+        throws FileNotFoundException, IOException
+    {
+        long version;
+        long size;
+        synchronized(this) {
+            version = version(file);
+            StorageTransfer.Chunk[] known = chunkIndex.chunks(file, version);
+            if(known != null) {
+                return known;
+            }
+            size = size(file);
+        }
+        // Read without holding the lock across the whole file, as a copy
+        // does
+        Chunker chunker = new Chunker();
+        for(long offset = 0; offset < size; ) {
+            int n = (int) Math.min(COPY_CHUNK, size - offset);
+            byte[] data = readLocal(file, offset, n);
+            chunker.update(data, 0, n);
+            offset += n;
+        }
+        StorageTransfer.Chunk[] chunks = chunker.finish();
+        synchronized(this) {
+            // A file written meanwhile may have mixed old and new data, so
+            // the list is not kept. A copy using it still reads the data as
+            // it is now, and at worst finds fewer chunks locally.
+            if(version(file) == version) {
+                chunkIndex.add(file, version, chunks);
+            }
+        }
+        return chunks;
+    }
+
+    // The following methods are documented in StorageControl.java.
+    @Override
+    public synchronized SizeChanges sizeChanges(long incarnation, long after, int limit)
+    {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if(incarnation != this.incarnation) {
+            // Sequence numbers from another run mean nothing here
+            after = 0;
+        }
+        ArrayList<Path> files = new ArrayList<Path>();
+        long next = sizeLog.read(after, limit, files);
+        long[] sizes = new long[files.size()];
+        for(int i=0; i<sizes.length; i++) {
+            try {
+                sizes[i] = size(files.get(i));
+            }
+            catch(FileNotFoundException e) {
+                sizes[i] = -1;
+            }
+        }
+        return new SizeChanges(this.incarnation, files.toArray(new Path[files.size()]),
+                               sizes, next);
+    }
+
+    @Override
+    public synchronized long version(Path file) throws FileNotFoundException
+    {
+        if(!locate(file).isFile() || file.isSubpath(PRIVATE_PATH)) {
+            throw new FileNotFoundException("Path does not refer to a file");
+        }
+        return sizeLog.version(file);
+    }
+
+    @Override
+    public synchronized long fence(Path file, long timeout) throws FileNotFoundException
+    {
+        long version = version(file);
+        fences.put(file, System.currentTimeMillis() + timeout);
+        return version;
+    }
+
+    @Override
+    public synchronized void unfence(Path file)
+    {
+        if(fences.remove(file) != null) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void hold(long timeout)
+    {
+        heldUntil = System.currentTimeMillis() + timeout;
+    }
+
+    @Override
+    public synchronized void unhold()
+    {
+        heldUntil = 0;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean retire(Path file, long version)
+    {
+        try {
+            if(version(file) != version) {
+                return false;
+            }
+        }
+        catch(FileNotFoundException e) {
+            return false;
+        }
+        return delete(file);
+    }
+
+    /* Waits, with the server lock released, while writes to a file are
+       fenced or all writes are held. Called with the lock held.
+     */
+    private void awaitFence(Path file) throws InterruptedIOException
+    {
+        while(true) {
+            Long fenced = fences.get(file);
+            long until = Math.max(heldUntil, fenced == null ? 0 : fenced);
+            long remaining = until - System.currentTimeMillis();
+            if(remaining <= 0) {
+                if(fenced != null) {
+                    fences.remove(file);
+                }
+                return;
+            }
+            try {
+                wait(remaining);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fenced");
+            }
+        }
+    }
+
+    /* Pauses after copying bytes, to keep under the given rate. */
+    private static void pace(long bytes, long bytesPerSecond) throws InterruptedIOException
+    {
+        try {
+            Thread.sleep(Math.max(1, bytes * 1000L / bytesPerSecond));
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing a copy");
+        }
     }
 }
@@ -0,0 +1,154 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import rmi.*;
+
+/** Storage server interface for transfers beyond the reads every storage
+    server accepts: the address of its data transport, packed reads and
+    writes, reading files as they were in a snapshot, and listing the chunks
+    of a file by content hash.
+
+    <p>
+    Packed reads compress the data on the wire for files in the directories
+    where a storage server compresses files at rest, so that text-heavy data
+    costs less network as well as less disk. Packed writes let a client do
+    the same for the data it sends.
+
+    <p>
+    The data transport serves <code>size</code>, <code>read</code> and
+    <code>write</code> without a thread per call on either side; its messages
+    are described in <code>DataTransport</code>.
+
+    <p>
+    Snapshots are taken by the naming server, which freezes the directory
+    tree and the contents of files together and tells clients which storage
+    server and which storage snapshot hold each file.
+
+    <p>
+    Chunks let a storage server copying a file skip the data it already
+    holds. Chunk boundaries depend on the content only, so an insertion into
+    a file changes the chunks around it and leaves the others as they were.
+
+    <p>
+    The storage stub a storage server registered with implements this
+    interface when the server supports these transfers.
+ */
+public interface StorageTransfer extends Storage
+{
+    /** Range of a file and the SHA-256 hash of its contents, returned by
+        <code>chunks</code>.
+     */
+    public static class Chunk implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        public final long offset;
+        public final int length;
+        public final byte[] hash;
+
+        public Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /** Returns the address of the data transport of the storage server.
+
+        @return The address, or <code>null</code> if the server does not run
+                the data transport.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    InetSocketAddress dataAddress() throws RMIException;
+
+    /** Reads a range of a file, as <code>read</code> does, and returns it
+        packed by <code>DataTransport.pack</code>. The data is compressed if
+        the file lies in a directory where compression is enabled, and if
+        that saves at least a tenth of its size.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the range.
+        @param length Length of the range, at most
+                      <code>DataTransport.MAX_DATA</code>.
+        @return The packed data.
+        @throws FileNotFoundException If the path does not refer to a file.
+        @throws IndexOutOfBoundsException If the range lies outside the file.
+        @throws IllegalArgumentException If <code>length</code> is larger than
+                                         <code>DataTransport.MAX_DATA</code>.
+        @throws IOException If the file cannot be read.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    byte[] readPacked(Path file, long offset, int length)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Writes data packed by <code>DataTransport.pack</code>, as
+        <code>write</code> does.
+
+        @param file Path to the file.
+        @param offset Offset into the file where data is to be written.
+        @param packed The packed data.
+        @throws FileNotFoundException If the path does not refer to a file.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws IOException If the packed data is malformed, or the file
+                            cannot be written.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    void writePacked(Path file, long offset, byte[] packed)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Splits a file into chunks by content, and hashes each.
+
+        <p>
+        The chunks cover the file from start to end, in order. The list is
+        kept until the file changes, so repeated calls, as made when a file
+        is copied to several servers, only read the file once.
+
+        @param file Path to the file.
+        @return The chunks of the file.
+        @throws FileNotFoundException If the path does not refer to a file.
+        @throws IOException If the file cannot be read.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    Chunk[] chunks(Path file) throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the length of a file as it was when a snapshot was taken.
+
+        @param id The identifier of the snapshot on this storage server.
+        @param file Path to the file.
+        @return The length of the file in the snapshot.
+        @throws IllegalArgumentException If the snapshot is not held.
+        @throws FileNotFoundException If the file did not exist in the
+                                      snapshot.
+        @throws IOException If the file cannot be read.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    long sizeSnapshot(long id, Path file)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Reads a range of a file as it was when a snapshot was taken.
+
+        @param id The identifier of the snapshot on this storage server.
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the range.
+        @param length Length of the range.
+        @return The bytes of the range in the snapshot.
+        @throws IllegalArgumentException If the snapshot is not held.
+        @throws FileNotFoundException If the file did not exist in the
+                                      snapshot.
+        @throws IndexOutOfBoundsException If the range lies outside the file
+                                          as it was in the snapshot.
+        @throws IOException If the file cannot be read.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    byte[] readSnapshot(long id, Path file, long offset, int length)
+        throws RMIException, FileNotFoundException, IOException;
+}
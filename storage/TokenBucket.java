@@ -0,0 +1,70 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Rate limiter that allows short bursts.
+
+    <p>
+    The bucket holds up to one second's worth of tokens and refills at a
+    constant rate. Instead of counting tokens, it records the time at which
+    all tokens handed out so far will have been earned back. Taking tokens
+    is then a single compare-and-set of that time, so callers never block each
+    other while being throttled.
+ */
+class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long rate;
+    private final long burstNanos;
+    // Time at which every token handed out so far is paid for
+    private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+    /** Creates a bucket.
+
+        @param rate Tokens earned per second.
+        @throws IllegalArgumentException If <code>rate</code> is not positive.
+     */
+    TokenBucket(long rate)
+    {
+        if(rate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.rate = rate;
+        this.burstNanos = NANOS_PER_SECOND;
+    }
+
+    /** Takes tokens from the bucket, going into debt if there are not enough.
+
+        @param tokens Number of tokens to take.
+        @return How long the caller must wait, in nanoseconds, before using the
+                tokens. Zero if they were available.
+     */
+    long take(long tokens)
+    {
+        long cost = cost(tokens);
+        while(true) {
+            long now = System.nanoTime();
+            long paid = paidUntil.get();
+            // Tokens unused for longer than the burst window are lost
+            long next = Math.max(paid, now - burstNanos) + cost;
+            if(paidUntil.compareAndSet(paid, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /* Time needed to earn the given number of tokens, in nanoseconds. Exact
+       for rates up to nine billion per second; the remainder is computed in
+       floating point above that.
+     */
+    private long cost(long tokens)
+    {
+        long whole = tokens / rate;
+        long rest = tokens % rate;
+        if(rest <= Long.MAX_VALUE / NANOS_PER_SECOND) {
+            return whole * NANOS_PER_SECOND + rest * NANOS_PER_SECOND / rate;
+        }
+        return whole * NANOS_PER_SECOND + (long) ((double) rest * NANOS_PER_SECOND / rate);
+    }
+}